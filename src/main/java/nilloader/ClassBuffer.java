@@ -0,0 +1,289 @@
+package nilloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import nilloader.api.NonLoadingClassWriter;
+
+/**
+ * A class on its way through the transformation pipeline, held as bytes, as a ClassNode, or both.
+ * Each form is only produced when a transformer asks for it, so a run of ASM transformers shares
+ * one parse and one write no matter how they're interleaved with raw transformers.
+ * <p>
+ * Transformers that can work on a visitor stream are queued up as {@link Stage}s instead, and
+ * consecutive stages are fused into a single ClassReader/ClassWriter pass in which every method
+ * they don't touch is copied over without being parsed.
+ */
+final class ClassBuffer {
+
+	interface Stage {
+		/**
+		 * @param recomputeFrames recomputes the frames of a method of the class being streamed
+		 */
+		ClassVisitor apply(ClassVisitor next, UnaryOperator<MethodNode> recomputeFrames);
+	}
+
+	private static final class PendingStage {
+		final String name;
+		final TransformerMetrics.Timer timer;
+		final Stage stage;
+
+		PendingStage(String name, TransformerMetrics.Timer timer, Stage stage) {
+			this.name = name;
+			this.timer = timer;
+			this.stage = stage;
+		}
+	}
+
+	private final ClassLoader loader;
+	private final String className;
+
+	/** Up to date unless {@link #dirty} is set or {@link #stages} is non-empty. */
+	private byte[] bytes;
+	/** Parsed from {@link #bytes}, or null if nobody has needed it yet. */
+	private ClassNode node;
+	/** Whether {@link #node} has been handed to something that may have changed it. */
+	private boolean dirty;
+	private boolean frames;
+	/** Methods of {@link #node} whose frames are stale, when the rest of the class is fine. */
+	private final Set<MethodNode> frameMethods = new HashSet<>();
+	/** Stages waiting to be run over {@link #bytes}. Never non-empty while {@link #dirty} is set. */
+	private final List<PendingStage> stages = new ArrayList<>();
+	private boolean modified;
+	private boolean failed;
+	/** Whether any frames were computed, which means asking the loader's class hierarchy. */
+	private boolean computedFrames;
+
+	ClassBuffer(ClassLoader loader, String className, byte[] bytes) {
+		this.loader = loader;
+		this.className = className;
+		this.bytes = bytes;
+	}
+
+	boolean hasNode() {
+		return node != null;
+	}
+
+	/**
+	 * @return the class as a tree, which the caller is expected to modify
+	 */
+	ClassNode modifyNode() {
+		runStages();
+		if (node == null) {
+			long start = System.nanoTime();
+			ClassReader reader = new ClassReader(bytes);
+			node = new ClassNode();
+			reader.accept(node, 0);
+			TransformerMetrics.PARSE.record(System.nanoTime()-start);
+		}
+		dirty = true;
+		modified = true;
+		return node;
+	}
+
+	/**
+	 * Request that frames be recomputed when the current tree is next written.
+	 */
+	void requireFrames() {
+		frames = true;
+	}
+
+	/**
+	 * @return a set to add methods of the current tree to if only their frames need to be
+	 * 		recomputed; every other method keeps the frames it was read with
+	 */
+	Set<MethodNode> getFrameMethods() {
+		return frameMethods;
+	}
+
+	/**
+	 * Queue a stage to run over this class the next time its bytes or tree are needed.
+	 * @param name what to blame in the log if the stage fails
+	 */
+	void addStage(String name, TransformerMetrics.Timer timer, Stage stage) {
+		if (dirty) getBytes();
+		node = null;
+		stages.add(new PendingStage(name, timer, stage));
+		modified = true;
+	}
+
+	byte[] getBytes() {
+		if (dirty) {
+			long start = System.nanoTime();
+			TransformerMetrics.Timer timer = TransformerMetrics.WRITE;
+			boolean computeFrames = false;
+			if (frames || !frameMethods.isEmpty()) {
+				if ((node.version & 0xFFFF) < Opcodes.V1_6) {
+					// the verifier doesn't look at frames this old, so there's nothing to compute
+					TransformerMetrics.FRAMES_SKIPPED.increment();
+				} else if (frames || !node.methods.containsAll(frameMethods)) {
+					// a patched method that's gone was replaced by a later transformer, and its
+					// replacement carries the stale frames, so recompute everything to be safe
+					computeFrames = true;
+					computedFrames = true;
+					timer = TransformerMetrics.WRITE_FRAMES;
+				} else {
+					for (MethodNode mn : frameMethods) {
+						int idx = node.methods.indexOf(mn);
+						node.methods.set(idx, recomputeFrames(node.version, node.access, node.name, node.superName, node.interfaces, mn));
+					}
+					computedFrames = true;
+					timer = TransformerMetrics.WRITE_METHOD_FRAMES;
+				}
+			}
+			ClassWriter writer = new CountingClassWriter(null, loader, computeFrames ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS);
+			node.accept(writer);
+			bytes = writer.toByteArray();
+			timer.record(System.nanoTime()-start);
+			dirty = false;
+			frames = false;
+			frameMethods.clear();
+		}
+		runStages();
+		return bytes;
+	}
+
+	private void runStages() {
+		if (stages.isEmpty()) return;
+		List<PendingStage> pending = new ArrayList<>(stages);
+		stages.clear();
+		long start = System.nanoTime();
+		try {
+			bytes = stream(pending);
+			// stages that share a pass can't be told apart, so each is charged for all of it
+			long elapsed = System.nanoTime()-start;
+			TransformerMetrics.STREAM.record(elapsed);
+			for (PendingStage ps : pending) {
+				ps.timer.record(elapsed);
+			}
+			return;
+		} catch (Throwable t) {
+			if (pending.size() == 1) {
+				TransformerMetrics.STREAM.record(System.nanoTime()-start, true);
+				fail(pending.get(0), System.nanoTime()-start, t);
+				return;
+			}
+			NilLoaderLog.log.debug("Fused pass over {} failed, retrying its {} stages one at a time", className, pending.size(), t);
+		}
+		for (PendingStage ps : pending) {
+			long stageStart = System.nanoTime();
+			try {
+				bytes = stream(Arrays.asList(ps));
+				TransformerMetrics.STREAM.record(System.nanoTime()-stageStart);
+				ps.timer.record(System.nanoTime()-stageStart);
+			} catch (Throwable t) {
+				TransformerMetrics.STREAM.record(System.nanoTime()-stageStart, true);
+				fail(ps, System.nanoTime()-stageStart, t);
+			}
+		}
+	}
+
+	private void fail(PendingStage ps, long nanos, Throwable t) {
+		ps.timer.record(nanos, true);
+		NilLoaderLog.log.error("Failed to transform {} via {}", className, ps.name, t);
+		failed = true;
+	}
+
+	private byte[] stream(List<PendingStage> pending) {
+		ClassReader reader = new ClassReader(bytes);
+		int version = reader.readUnsignedShort(6);
+		String[] interfaces = reader.getInterfaces();
+		UnaryOperator<MethodNode> recomputeFrames = mn -> {
+			if (version < Opcodes.V1_6) {
+				TransformerMetrics.FRAMES_SKIPPED.increment();
+				return mn;
+			}
+			computedFrames = true;
+			return recomputeFrames(version, reader.getAccess(), reader.getClassName(), reader.getSuperName(), Arrays.asList(interfaces), mn);
+		};
+		// unchanged methods are copied straight from the reader, as long as no stage wraps their visitors
+		ClassWriter writer = new CountingClassWriter(reader, loader, ClassWriter.COMPUTE_MAXS);
+		ClassVisitor cv = writer;
+		for (int i = pending.size()-1; i >= 0; i--) {
+			cv = pending.get(i).stage.apply(cv, recomputeFrames);
+		}
+		reader.accept(cv, 0);
+		return writer.toByteArray();
+	}
+
+	/**
+	 * Recompute the frames of a single method by writing it out on its own in a copy of its
+	 * class's header.
+	 * @return a copy of the method with up to date frames
+	 */
+	private MethodNode recomputeFrames(int version, int access, String name, String superName, List<String> interfaces, MethodNode mn) {
+		ClassNode shell = new ClassNode();
+		shell.version = version;
+		shell.access = access;
+		shell.name = name;
+		shell.superName = superName;
+		shell.interfaces = interfaces;
+		shell.methods.add(mn);
+		ClassWriter writer = new CountingClassWriter(null, loader, ClassWriter.COMPUTE_FRAMES);
+		shell.accept(writer);
+		ClassNode out = new ClassNode();
+		new ClassReader(writer.toByteArray()).accept(out, 0);
+		return out.methods.get(0);
+	}
+
+	private static final class CountingClassWriter extends NonLoadingClassWriter {
+		CountingClassWriter(ClassReader reader, ClassLoader loader, int flags) {
+			super(reader, loader, flags);
+		}
+
+		@Override
+		protected String getCommonSuperClass(String a, String b) {
+			TransformerMetrics.COMMON_SUPER_CLASS.increment();
+			return super.getCommonSuperClass(a, b);
+		}
+	}
+
+	/**
+	 * Replace the contents of this buffer with the output of a raw transformer. Passing in the
+	 * array last returned by {@link #getBytes()} leaves the buffer untouched.
+	 */
+	void setBytes(byte[] bytes) {
+		if (bytes == null || bytes == this.bytes) return;
+		this.bytes = bytes;
+		node = null;
+		dirty = false;
+		frames = false;
+		frameMethods.clear();
+		stages.clear();
+		modified = true;
+	}
+
+	/**
+	 * @return {@code true} if any transformer was given the chance to change this class
+	 */
+	boolean isModified() {
+		return modified;
+	}
+
+	/**
+	 * @return {@code true} if frames were computed for any part of the class, so the result
+	 * 		depends on the loader's class hierarchy
+	 */
+	boolean hasComputedFrames() {
+		return computedFrames;
+	}
+
+	/**
+	 * @return {@code true} if a queued stage threw and was skipped
+	 */
+	boolean hasFailed() {
+		return failed;
+	}
+
+}
@@ -0,0 +1,194 @@
+package nilloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Superclass, interfaces and access flags of every class frame computation has needed to know
+ * about, per class loader, along with the common superclasses already worked out from them.
+ * Shared by every {@link nilloader.api.NonLoadingClassWriter} for the life of the loader, which
+ * reach it through {@link NilAgent#getCommonSuperClassFinder(ClassLoader)}.
+ */
+final class ClassHierarchyCache {
+
+	private static final class Record {
+		final String name;
+		final String superName;
+		final String[] interfaces;
+		final int access;
+
+		Record(ClassReader reader) {
+			this.name = reader.getClassName();
+			this.superName = reader.getSuperName();
+			this.interfaces = reader.getInterfaces();
+			this.access = reader.getAccess();
+		}
+
+		boolean isInterface() {
+			return (access & Opcodes.ACC_INTERFACE) != 0;
+		}
+
+		boolean sameHierarchy(Record that) {
+			return (superName == null ? that.superName == null : superName.equals(that.superName))
+					&& Arrays.equals(interfaces, that.interfaces) && isInterface() == that.isInterface();
+		}
+	}
+
+	private static final Map<ClassLoader, ClassHierarchyCache> byLoader = new WeakHashMap<>();
+
+	/** How many common superclasses a loader's cache remembers before starting over. */
+	private static final int MAX_MEMOIZED = 1 << 16;
+
+	private static final LongAdder loads = new LongAdder();
+	private static final LongAdder memoHits = new LongAdder();
+
+	/** Held weakly, as this cache is itself only weakly reachable from its loader's key. */
+	private final WeakReference<ClassLoader> loader;
+	private final Map<String, Record> records = new ConcurrentHashMap<>();
+	/** First type, then second type, to their common superclass, so a hit needn't build a key. */
+	private final Map<String, Map<String, String>> commonSuperClasses = new ConcurrentHashMap<>();
+	private final AtomicInteger memoized = new AtomicInteger();
+
+	private ClassHierarchyCache(ClassLoader loader) {
+		this.loader = new WeakReference<>(loader);
+	}
+
+	static ClassHierarchyCache forLoader(ClassLoader loader) {
+		if (loader == null) loader = ClassLoader.getSystemClassLoader();
+		synchronized (byLoader) {
+			ClassHierarchyCache cache = byLoader.get(loader);
+			if (cache == null) {
+				cache = new ClassHierarchyCache(loader);
+				byLoader.put(loader, cache);
+			}
+			return cache;
+		}
+	}
+
+	/**
+	 * Remember the hierarchy of a class that was just transformed, so it's never read back from
+	 * its (untransformed) resource.
+	 */
+	void record(byte[] classBytes) {
+		Record r = new Record(new ClassReader(classBytes));
+		Record old = records.put(r.name, r);
+		if (old != null && !old.sameHierarchy(r)) {
+			// something was worked out from what's on disk, which no longer matches
+			forgetCommonSuperClasses();
+		}
+	}
+
+	/**
+	 * @see org.objectweb.asm.ClassWriter#getCommonSuperClass(String, String)
+	 */
+	String getCommonSuperClass(String a, String b) {
+		if ("java/lang/Object".equals(a) || "java/lang/Object".equals(b)) return "java/lang/Object";
+		Map<String, String> forA = commonSuperClasses.get(a);
+		String result = forA == null ? null : forA.get(b);
+		if (result != null) {
+			memoHits.increment();
+			return result;
+		}
+		result = computeCommonSuperClass(a, b);
+		if (forA == null) forA = commonSuperClasses.computeIfAbsent(a, k -> new ConcurrentHashMap<>());
+		if (forA.put(b, result) == null && memoized.incrementAndGet() > MAX_MEMOIZED) {
+			// rather than tracking what's least used, just start over; the classes a loader is
+			// defining at the moment will soon be back in
+			forgetCommonSuperClasses();
+		}
+		return result;
+	}
+
+	private void forgetCommonSuperClasses() {
+		commonSuperClasses.clear();
+		memoized.set(0);
+	}
+
+	private String computeCommonSuperClass(String a, String b) {
+		Record class1 = get(a);
+		Record class2 = get(b);
+		if (canAssign(class1, class2)) {
+			return class1.name;
+		}
+		if (canAssign(class2, class1)) {
+			return class2.name;
+		}
+		if (class1.isInterface() || class2.isInterface()) {
+			return "java/lang/Object";
+		}
+		return getCommonSuperClass(a, class2.superName);
+	}
+
+	private boolean isImplementingInterface(Record clazz, String interfaceName) {
+		if (clazz == null || clazz.name.equals("java/lang/Object")) {
+			return false;
+		}
+		for (String iface : clazz.interfaces) {
+			if (iface.equals(interfaceName) || isImplementingInterface(get(iface), interfaceName)) {
+				return true;
+			}
+		}
+		if (clazz.isInterface()) {
+			return false;
+		}
+		return isImplementingInterface(get(clazz.superName), interfaceName);
+	}
+
+	private boolean canAssign(Record superType, Record subType) {
+		if (superType.isInterface()) {
+			return isImplementingInterface(subType, superType.name);
+		}
+		while (subType != null) {
+			if (superType.name.equals(subType.name) || superType.name.equals(subType.superName)) {
+				return true;
+			}
+			if (subType.name.equals("java/lang/Object")) {
+				return false;
+			}
+			subType = get(subType.superName);
+		}
+		return false;
+	}
+
+	private Record get(String type) {
+		Record r = records.get(type);
+		if (r == null) {
+			r = load(type);
+			Record existing = records.putIfAbsent(type, r);
+			if (existing != null) r = existing;
+		}
+		return r;
+	}
+
+	private Record load(String type) {
+		ClassLoader loader = this.loader.get();
+		URL url = loader == null ? null : loader.getResource(type+".class");
+		if (url == null) throw new TypeNotPresentException(type, null);
+		loads.increment();
+		try (InputStream in = url.openStream()) {
+			return new Record(new ClassReader(in));
+		} catch (IOException e) {
+			throw new TypeNotPresentException(type, e);
+		}
+	}
+
+	static long getLoads() {
+		return loads.sum();
+	}
+
+	static long getMemoHits() {
+		return memoHits.sum();
+	}
+
+}
@@ -0,0 +1,176 @@
+package nilloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which nilmod, if any, the classes of a code source come from. Locations are compared as
+ * decoded paths rather than as URLs, as comparing URLs can mean resolving host names, and
+ * {@code jar:} and {@code union:} locations are unwrapped to the file they point into. Each code
+ * source the JVM hands us is only ever resolved once; after that it's looked up by identity, and
+ * only held weakly, so a loader's code sources can go away along with it.
+ */
+final class CodeSourceIndex {
+
+	static final CodeSourceIndex EMPTY = new CodeSourceIndex(new HashMap<>());
+
+	/** Stands in for code sources that aren't from a nilmod, as a missing mapping is null. */
+	private static final String NONE = new String("");
+
+	/**
+	 * Holds a code source weakly, and is equal to any other key or lookup for the very same code
+	 * source. CodeSource.equals compares locations, which is exactly what we're avoiding.
+	 */
+	private static final class WeakKey extends WeakReference<CodeSource> {
+		private final int hash;
+
+		WeakKey(CodeSource cs, ReferenceQueue<CodeSource> queue) {
+			super(cs, queue);
+			this.hash = System.identityHashCode(cs);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj == this) return true;
+			CodeSource cs = get();
+			if (cs == null) return false;
+			if (obj instanceof WeakKey) return ((WeakKey)obj).get() == cs;
+			return obj instanceof Lookup && ((Lookup)obj).cs == cs;
+		}
+	}
+
+	/** A key for looking a code source up, which isn't kept. */
+	private static final class Lookup {
+		final CodeSource cs;
+
+		Lookup(CodeSource cs) {
+			this.cs = cs;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(cs);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof WeakKey && ((WeakKey)obj).get() == cs;
+		}
+	}
+
+	/** The code source last looked up and its result, which is usually the next one asked for too. */
+	private static final class LastHit {
+		final CodeSource cs;
+		final String id;
+
+		LastHit(CodeSource cs, String id) {
+			this.cs = cs;
+			this.id = id;
+		}
+	}
+
+	private final Map<String, String> byPath;
+	private volatile LastHit lastHit = new LastHit(null, NONE);
+	private final Map<Object, String> byCodeSource = new ConcurrentHashMap<>();
+	/** Keys of code sources that have been collected, to be removed from {@link #byCodeSource}. */
+	private final ReferenceQueue<CodeSource> collected = new ReferenceQueue<>();
+
+	private CodeSourceIndex(Map<String, String> byPath) {
+		this.byPath = byPath;
+	}
+
+	/**
+	 * @param sources nilmod jars and directories, to the id of the nilmod they hold
+	 */
+	static CodeSourceIndex build(Map<File, String> sources) {
+		Map<String, String> byPath = new HashMap<>();
+		for (Map.Entry<File, String> en : sources.entrySet()) {
+			File f = en.getKey();
+			byPath.put(normalize(f.getAbsoluteFile().toURI().getPath()), en.getValue());
+			try {
+				byPath.put(normalize(f.getCanonicalFile().toURI().getPath()), en.getValue());
+			} catch (IOException e) {
+				NilLoaderLog.log.error("Failed to add {} to class map", f, e);
+			}
+		}
+		return new CodeSourceIndex(byPath);
+	}
+
+	/**
+	 * @return the id of the nilmod the given code source's classes come from, or null
+	 */
+	String get(CodeSource cs) {
+		LastHit last = lastHit;
+		if (last.cs == cs) return last.id == NONE ? null : last.id;
+		String id = byCodeSource.get(new Lookup(cs));
+		if (id == null) {
+			id = get(cs.getLocation());
+			if (id == null) id = NONE;
+			Reference<? extends CodeSource> ref;
+			while ((ref = collected.poll()) != null) {
+				byCodeSource.remove(ref);
+			}
+			byCodeSource.put(new WeakKey(cs, collected), id);
+		}
+		// holds on to just the one code source, until another is looked up
+		lastHit = new LastHit(cs, id);
+		return id == NONE ? null : id;
+	}
+
+	/**
+	 * @return the id of the nilmod at the given location, or null
+	 */
+	String get(URL location) {
+		if (location == null) return null;
+		String path = toPath(location.toString());
+		return path == null ? null : byPath.get(path);
+	}
+
+	/**
+	 * @return the decoded path of the file the given location points into, or null if it isn't
+	 * 		in a file at all
+	 */
+	private static String toPath(String str) {
+		// unwrapped repeatedly, as jars can be nested
+		for (int i = 0; i < 5; i++) {
+			if (str.startsWith("jar:")) {
+				int bang = str.indexOf('!');
+				str = str.substring(4, bang == -1 ? str.length() : bang);
+			} else if (str.startsWith("union:")) {
+				// some ModLauncher nonsense
+				int hash = str.indexOf("%23");
+				str = "file:"+str.substring(6, hash == -1 ? str.length() : hash);
+			} else {
+				break;
+			}
+		}
+		if (!str.startsWith("file:")) return null;
+		try {
+			String path = new URI(str).getPath();
+			if (path != null) return normalize(path);
+		} catch (URISyntaxException e) {
+			// not escaped as it should be; use it as it is
+		}
+		return normalize(str.substring(5));
+	}
+
+	private static String normalize(String path) {
+		return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length()-1) : path;
+	}
+
+}
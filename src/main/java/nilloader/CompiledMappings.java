@@ -0,0 +1,388 @@
+package nilloader;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.cadixdev.bombe.analysis.InheritanceProvider;
+import org.cadixdev.bombe.analysis.InheritanceProvider.ClassInfo;
+import org.cadixdev.bombe.type.MethodDescriptor;
+import org.cadixdev.bombe.type.ObjectType;
+import org.cadixdev.bombe.type.Type;
+import org.cadixdev.bombe.type.signature.FieldSignature;
+import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.cadixdev.lorenz.MappingSet;
+import org.cadixdev.lorenz.model.ClassMapping;
+import org.cadixdev.lorenz.model.FieldMapping;
+import org.cadixdev.lorenz.model.InnerClassMapping;
+import org.cadixdev.lorenz.model.MethodMapping;
+import org.cadixdev.lorenz.model.TopLevelClassMapping;
+import org.objectweb.asm.commons.Remapper;
+
+/**
+ * A MappingSet flattened into immutable open-addressed tables when the active mappings are
+ * frozen. Lookups don't allocate and, unlike LorenzRemapper, never add anything to the mapping
+ * model for owners that merely get referenced. Members are inherited the way Lorenz completes a
+ * class mapping: only those the owner can actually inherit, and methods whose return type an
+ * override narrows are mapped along with it.
+ */
+final class CompiledMappings {
+
+	/**
+	 * Open-addressed table keyed by up to three strings, so members can be looked up by owner,
+	 * name and descriptor without concatenating them.
+	 */
+	private static final class Table {
+		private String[] keys = new String[3*16];
+		private String[] values = new String[16];
+		private int size;
+
+		Table() {}
+
+		Table(Table copy) {
+			keys = copy.keys.clone();
+			values = copy.values.clone();
+			size = copy.size;
+		}
+
+		private static int hash(int a, int b, int c) {
+			int h = (a*31+b)*31+c;
+			return h ^ (h >>> 16);
+		}
+
+		void put(String a, String b, String c, String value) {
+			if ((size+1)*2 > values.length) {
+				String[] oldKeys = keys;
+				String[] oldValues = values;
+				keys = new String[oldKeys.length*2];
+				values = new String[oldValues.length*2];
+				size = 0;
+				for (int i = 0; i < oldValues.length; i++) {
+					if (oldValues[i] != null) put(oldKeys[i*3], oldKeys[i*3+1], oldKeys[i*3+2], oldValues[i]);
+				}
+			}
+			int mask = values.length-1;
+			int i = hash(a.hashCode(), b.hashCode(), c.hashCode()) & mask;
+			while (values[i] != null) {
+				if (matches(i, a, b, c)) {
+					// first one wins, like the mapping model
+					return;
+				}
+				i = (i+1) & mask;
+			}
+			keys[i*3] = a;
+			keys[i*3+1] = b;
+			keys[i*3+2] = c;
+			values[i] = value;
+			size++;
+		}
+
+		String get(String a, String b, String c) {
+			int mask = values.length-1;
+			int i = hash(a.hashCode(), b.hashCode(), c.hashCode()) & mask;
+			while (values[i] != null) {
+				if (matches(i, a, b, c)) return values[i];
+				i = (i+1) & mask;
+			}
+			return null;
+		}
+
+		/**
+		 * Look up a single-string key by a prefix of {@code s}, without taking a substring.
+		 */
+		String getPrefix(String s, int len) {
+			int h = 0;
+			for (int j = 0; j < len; j++) {
+				h = 31*h+s.charAt(j);
+			}
+			int mask = values.length-1;
+			int i = hash(h, 0, 0) & mask;
+			while (values[i] != null) {
+				String k = keys[i*3];
+				if (k.length() == len && s.startsWith(k)) return values[i];
+				i = (i+1) & mask;
+			}
+			return null;
+		}
+
+		/** Slots to iterate over with {@link #key} and {@link #value}, which are empty if null. */
+		int capacity() {
+			return values.length;
+		}
+
+		String key(int slot, int part) {
+			return keys[slot*3+part];
+		}
+
+		String value(int slot) {
+			return values[slot];
+		}
+
+		private boolean matches(int i, String a, String b, String c) {
+			return keys[i*3].equals(a) && keys[i*3+1].equals(b) && keys[i*3+2].equals(c);
+		}
+	}
+
+	/** Obfuscated internal name to deobfuscated internal name, for classes that are renamed. */
+	private final Table classes = new Table();
+	/** Every class with a mapping to its deobfuscated name: simple if inner, otherwise internal. */
+	private final Table innerNames = new Table();
+	/** The members each owner has mappings for. */
+	private final Map<String, Members> declared = new HashMap<>();
+	private int memberCount;
+
+	private final Map<ClassLoader, Remapper> remappers = new WeakHashMap<>();
+
+	/**
+	 * Fields keyed by name and descriptor (or "" if untyped), and methods keyed by name and
+	 * descriptor, to their deobfuscated names.
+	 */
+	private static final class Members {
+		final Table fields;
+		final Table methods;
+
+		Members() {
+			this(new Table(), new Table());
+		}
+
+		Members(Table fields, Table methods) {
+			this.fields = fields;
+			this.methods = methods;
+		}
+	}
+
+	private static final Members NO_MEMBERS = new Members();
+
+	private CompiledMappings() {}
+
+	static CompiledMappings compile(MappingSet mappings) {
+		CompiledMappings out = new CompiledMappings();
+		for (TopLevelClassMapping cm : mappings.getTopLevelClassMappings()) {
+			out.add(cm);
+		}
+		return out;
+	}
+
+	private void add(ClassMapping<?, ?> cm) {
+		String obf = cm.getFullObfuscatedName();
+		String deobf = cm.getFullDeobfuscatedName();
+		if (!obf.equals(deobf)) {
+			classes.put(obf, "", "", deobf);
+		}
+		innerNames.put(obf, "", "", cm.getDeobfuscatedName());
+		if (!cm.getFieldMappings().isEmpty() || !cm.getMethodMappings().isEmpty()) {
+			Members m = new Members();
+			for (FieldMapping fm : cm.getFieldMappings()) {
+				String desc = fm.getType().map(Object::toString).orElse("");
+				m.fields.put(fm.getObfuscatedName(), desc, "", fm.getDeobfuscatedName());
+			}
+			for (MethodMapping mm : cm.getMethodMappings()) {
+				m.methods.put(mm.getObfuscatedName(), mm.getObfuscatedDescriptor(), "", mm.getDeobfuscatedName());
+			}
+			declared.put(obf, m);
+			memberCount += m.fields.size+m.methods.size;
+		}
+		for (InnerClassMapping icm : cm.getInnerClassMappings()) {
+			add(icm);
+		}
+	}
+
+	int getClassCount() {
+		return classes.size;
+	}
+
+	int getMemberCount() {
+		return memberCount;
+	}
+
+	/**
+	 * @return a remapper for classes defined by the given loader, which it resolves inherited
+	 * 		members through
+	 */
+	Remapper getRemapper(ClassLoader loader) {
+		synchronized (remappers) {
+			Remapper r = remappers.get(loader);
+			if (r == null) {
+				r = new CompiledRemapper(InheritanceCache.forLoader(loader));
+				remappers.put(loader, r);
+			}
+			return r;
+		}
+	}
+
+	private final class CompiledRemapper extends Remapper {
+		private final InheritanceProvider inheritance;
+		/** The members of each owner seen so far, along with everything it inherits. */
+		private final Map<String, Members> completed = new ConcurrentHashMap<>();
+
+		CompiledRemapper(InheritanceProvider inheritance) {
+			this.inheritance = inheritance;
+		}
+
+		@Override
+		public String map(String internalName) {
+			String mapped = classes.get(internalName, "", "");
+			if (mapped != null) return mapped;
+			// an inner class with no mapping of its own still moves with its outer class
+			int dollar = internalName.lastIndexOf('$');
+			while (dollar > 0) {
+				String outer = classes.getPrefix(internalName, dollar);
+				if (outer != null) return outer+internalName.substring(dollar);
+				dollar = internalName.lastIndexOf('$', dollar-1);
+			}
+			return internalName;
+		}
+
+		@Override
+		public String mapInnerClassName(String name, String ownerName, String innerName) {
+			String mapped = innerNames.get(name, "", "");
+			if (mapped != null) return mapped;
+			// Lorenz makes up a mapping that keeps the name for an inner class of a mapped class
+			int dollar = name.lastIndexOf('$');
+			if (dollar > 0 && innerNames.getPrefix(name, dollar) != null) return name.substring(dollar+1);
+			return innerName;
+		}
+
+		@Override
+		public String mapFieldName(String owner, String name, String descriptor) {
+			Members m = getCompleted(owner);
+			String mapped = m.fields.get(name, descriptor, "");
+			if (mapped == null) mapped = m.fields.get(name, "", "");
+			return mapped != null ? mapped : name;
+		}
+
+		@Override
+		public String mapMethodName(String owner, String name, String descriptor) {
+			String mapped = getCompleted(owner).methods.get(name, descriptor, "");
+			return mapped != null ? mapped : name;
+		}
+
+		private Members getCompleted(String owner) {
+			Members out = completed.get(owner);
+			if (out == null) {
+				// not computeIfAbsent, as completing an owner completes its parents first
+				out = complete(owner);
+				Members raced = completed.putIfAbsent(owner, out);
+				if (raced != null) out = raced;
+			}
+			return out;
+		}
+
+		/**
+		 * Mirrors Lorenz's AbstractClassMappingImpl.complete.
+		 */
+		private Members complete(String owner) {
+			Members own = declared.getOrDefault(owner, NO_MEMBERS);
+			if (declared.isEmpty()) return own;
+			Optional<ClassInfo> infoOpt = inheritance.provide(owner);
+			if (!infoOpt.isPresent()) return own;
+			ClassInfo info = infoOpt.get();
+			List<ClassInfo> parents = getParents(info);
+			boolean anyMapped = false;
+			for (ClassInfo parent : parents) {
+				if (declared.containsKey(parent.getName())) {
+					anyMapped = true;
+					break;
+				}
+			}
+			if (!anyMapped) return own;
+
+			Map<String, List<MethodSignature>> ownMethods = new HashMap<>();
+			for (MethodSignature sig : info.getMethods().keySet()) {
+				ownMethods.computeIfAbsent(sig.getName(), k -> new ArrayList<>()).add(sig);
+			}
+			Members out = new Members(new Table(own.fields), new Table(own.methods));
+			for (ClassInfo parent : parents) {
+				Members pm = getCompleted(parent.getName());
+				for (int i = 0; i < pm.fields.capacity(); i++) {
+					String deobf = pm.fields.value(i);
+					if (deobf == null) continue;
+					String name = pm.fields.key(i, 0);
+					String desc = pm.fields.key(i, 1);
+					FieldSignature sig = desc.isEmpty() ? new FieldSignature(name) : FieldSignature.of(name, desc);
+					if (parent.canInherit(info, sig)) {
+						out.fields.put(name, desc, "", deobf);
+					}
+				}
+				for (int i = 0; i < pm.methods.capacity(); i++) {
+					String deobf = pm.methods.value(i);
+					if (deobf == null) continue;
+					String name = pm.methods.key(i, 0);
+					String desc = pm.methods.key(i, 1);
+					if (parent.canInherit(info, MethodSignature.of(name, desc))) {
+						out.methods.put(name, desc, "", deobf);
+					}
+					List<MethodSignature> overrides = ownMethods.get(name);
+					if (overrides == null) continue;
+					// an override may narrow the return type, which changes its descriptor
+					MethodDescriptor md = MethodDescriptor.of(desc);
+					for (MethodSignature sig : overrides) {
+						MethodDescriptor sd = sig.getDescriptor();
+						if (sd.getParamTypes().equals(md.getParamTypes())
+								&& isAssignable(md.getReturnType(), sd.getReturnType())) {
+							out.methods.put(name, sd.toString(), "", deobf);
+						}
+					}
+				}
+			}
+			return out;
+		}
+
+		/**
+		 * Type.isAssignableFrom, but without ClassInfo.hasParent, for the same reason as
+		 * {@link #getParents}.
+		 */
+		private boolean isAssignable(Type to, Type from) {
+			if (to.equals(from)) return true;
+			if (!(to instanceof ObjectType) || !(from instanceof ObjectType)) return false;
+			String toName = ((ObjectType)to).getClassName();
+			if (toName.equals("java/lang/Object")) return true;
+			Optional<ClassInfo> info = inheritance.provide(((ObjectType)from).getClassName());
+			if (!info.isPresent()) return false;
+			for (ClassInfo parent : getParents(info.get())) {
+				if (parent.getName().equals(toName)) return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return every supertype of the given class that can be provided, nearest first
+		 */
+		private List<ClassInfo> getParents(ClassInfo info) {
+			// not ClassInfo.provideParents, which caches what it finds in a way that isn't safe
+			// for the threads sharing the inheritance cache
+			List<ClassInfo> out = new ArrayList<>();
+			Set<String> seen = new HashSet<>();
+			Deque<ClassInfo> queue = new ArrayDeque<>();
+			queue.add(info);
+			while (!queue.isEmpty()) {
+				ClassInfo ci = queue.poll();
+				String superName = ci.getSuperName();
+				if (superName != null && !superName.isEmpty() && seen.add(superName)) {
+					inheritance.provide(superName).ifPresent(p -> {
+						out.add(p);
+						queue.add(p);
+					});
+				}
+				for (String iface : ci.getInterfaces()) {
+					if (seen.add(iface)) {
+						inheritance.provide(iface).ifPresent(p -> {
+							out.add(p);
+							queue.add(p);
+						});
+					}
+				}
+			}
+			return out;
+		}
+	}
+
+}
@@ -0,0 +1,231 @@
+package nilloader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import nilloader.api.NilMetadata;
+
+/**
+ * What every jar looked at during discovery turned out to contain, as of the last launch, so a jar
+ * that hasn't changed since doesn't have to be opened again. Jars are recognized by their path,
+ * size, modification time and a checksum of their tail, which is where a zip's central directory
+ * lives. Mappings are stored as shipped, to be parsed lazily like they would be from the jar. The
+ * whole index is thrown away whenever NilLoader's version changes.
+ */
+final class DiscoveryCache {
+
+	private static final int MAGIC = 0x4E494C44; // NILD
+	private static final int VERSION = 2;
+	private static final int TAIL_LENGTH = 4096;
+
+	static final class Key {
+		final String path;
+		final long size;
+		final long lastModified;
+		final int tailCrc;
+
+		Key(String path, long size, long lastModified, int tailCrc) {
+			this.path = path;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.tailCrc = tailCrc;
+		}
+
+		boolean matches(Key that) {
+			return path.equals(that.path) && size == that.size && lastModified == that.lastModified && tailCrc == that.tailCrc;
+		}
+	}
+
+	private static final class Entry {
+		final Key key;
+		final byte[] data;
+
+		Entry(Key key, byte[] data) {
+			this.key = key;
+			this.data = data;
+		}
+	}
+
+	private final File file;
+	private final String loaderVersion;
+	/** What was read from disk, by path. */
+	private final Map<String, Entry> loaded = new ConcurrentHashMap<>();
+	/** Every jar seen this launch, which is all that gets written back. */
+	private final Map<String, Entry> seen = new ConcurrentHashMap<>();
+	private volatile boolean dirty;
+
+	private DiscoveryCache(File file, String loaderVersion) {
+		this.file = file;
+		this.loaderVersion = loaderVersion;
+	}
+
+	/**
+	 * Load the index at the given path, starting an empty one if it's missing, unreadable, or
+	 * was written by another version of NilLoader.
+	 */
+	static DiscoveryCache load(File file, String loaderVersion) {
+		DiscoveryCache cache = new DiscoveryCache(file, loaderVersion);
+		if (!file.isFile()) return cache;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(loaderVersion)) {
+				NilLoaderLog.log.debug("Discovery cache at {} is stale; starting a new one", file);
+				cache.dirty = true;
+				return cache;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				Key key = new Key(in.readUTF(), in.readLong(), in.readLong(), in.readInt());
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				cache.loaded.put(key.path, new Entry(key, data));
+			}
+			NilLoaderLog.log.debug("Loaded discovery cache at {} with {} entr{}", file, count, count == 1 ? "y" : "ies");
+		} catch (IOException e) {
+			NilLoaderLog.log.debug("Failed to load discovery cache at {}; starting a new one", file, e);
+			cache.loaded.clear();
+			cache.dirty = true;
+		}
+		return cache;
+	}
+
+	/**
+	 * @return what identifies the given jar as it is right now, or null if it can't be read
+	 */
+	Key key(File jar) {
+		try {
+			long size = jar.length();
+			int tail = (int)Math.min(size, TAIL_LENGTH);
+			byte[] buf = new byte[tail];
+			try (RandomAccessFile raf = new RandomAccessFile(jar, "r")) {
+				raf.seek(size-tail);
+				raf.readFully(buf);
+			}
+			CRC32 crc = new CRC32();
+			crc.update(buf);
+			return new Key(jar.getCanonicalPath(), size, jar.lastModified(), (int)crc.getValue());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the result of the last scan of the given jar, if it hasn't changed since, or null
+	 */
+	NilAgent.Discovery get(Key key, File jar) {
+		Entry e = loaded.get(key.path);
+		if (e == null || !e.key.matches(key)) return null;
+		try {
+			NilAgent.Discovery d = decode(e.data, jar);
+			seen.put(key.path, e);
+			return d;
+		} catch (IOException | RuntimeException ex) {
+			NilLoaderLog.log.debug("Ignoring corrupt discovery cache entry for {}", jar, ex);
+			return null;
+		}
+	}
+
+	void put(Key key, NilAgent.Discovery d) {
+		try {
+			seen.put(key.path, new Entry(key, encode(d)));
+			dirty = true;
+		} catch (IOException | RuntimeException e) {
+			NilLoaderLog.log.debug("Failed to add {} to discovery cache", d.file, e);
+		}
+	}
+
+	/**
+	 * Write back everything seen this launch, if it differs from what was loaded.
+	 */
+	void save() {
+		if (!dirty && seen.size() == loaded.size()) return;
+		File tmp = new File(file.getPath()+".tmp");
+		try {
+			file.getParentFile().mkdirs();
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(loaderVersion);
+				out.writeInt(seen.size());
+				for (Entry e : seen.values()) {
+					out.writeUTF(e.key.path);
+					out.writeLong(e.key.size);
+					out.writeLong(e.key.lastModified);
+					out.writeInt(e.key.tailCrc);
+					out.writeInt(e.data.length);
+					out.write(e.data);
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			NilLoaderLog.log.debug("Wrote discovery cache to {} with {} entr{}", file, seen.size(), seen.size() == 1 ? "y" : "ies");
+		} catch (IOException e) {
+			NilLoaderLog.log.debug("Failed to write discovery cache to {}", file, e);
+			tmp.delete();
+		}
+	}
+
+	private static byte[] encode(NilAgent.Discovery d) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.writeInt(d.found.size());
+		for (NilMetadata meta : d.found) {
+			out.writeUTF(meta.id);
+			out.writeUTF(meta.name);
+			out.writeUTF(meta.description);
+			out.writeUTF(meta.authors);
+			out.writeUTF(meta.version);
+			out.writeInt(meta.entrypoints.size());
+			for (Map.Entry<String, String> en : meta.entrypoints.entrySet()) {
+				out.writeUTF(en.getKey());
+				out.writeUTF(en.getValue());
+			}
+		}
+		out.writeBoolean(d.mappings != null);
+		if (d.mappings != null) {
+			d.mappings.writeTo(out);
+		}
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	private static NilAgent.Discovery decode(byte[] data, File jar) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		NilAgent.Discovery d = new NilAgent.Discovery(jar);
+		int mods = in.readInt();
+		for (int i = 0; i < mods; i++) {
+			String id = in.readUTF();
+			String name = in.readUTF();
+			String description = in.readUTF();
+			String authors = in.readUTF();
+			String version = in.readUTF();
+			int count = in.readInt();
+			Map<String, String> entrypoints = new HashMap<>();
+			for (int j = 0; j < count; j++) {
+				entrypoints.put(in.readUTF(), in.readUTF());
+			}
+			d.found.add(new NilMetadata(id, name, description, authors, version, Collections.unmodifiableMap(entrypoints), jar));
+		}
+		if (in.readBoolean()) {
+			long start = System.nanoTime();
+			d.mappings = LazyMappings.readFrom(in, jar);
+			d.mappingsNanos = System.nanoTime()-start;
+		}
+		return d;
+	}
+
+}
@@ -0,0 +1,203 @@
+package nilloader;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes debug dumps on a background thread, so class loading only ever has to queue them. The
+ * queue is bounded; once it's full, a dump waits a little while for room and is then dropped and
+ * counted rather than holding up class loading any longer. Dumps go either to a file apiece, like
+ * they always have, or into a series of zips that are rolled over once they hold enough. Either
+ * way, a dump identical to the last one written to the same path is skipped.
+ */
+final class DumpWriter {
+
+	private static final class Dump {
+		final String path;
+		final byte[] data;
+
+		Dump(String path, byte[] data) {
+			this.path = path;
+			this.data = data;
+		}
+	}
+
+	private static final Dump END = new Dump(null, null);
+
+	private final File dir;
+	private final boolean zip;
+	private final long maxZipSize;
+	private final long maxWaitMillis;
+	private final BlockingQueue<Dump> queue;
+	private final Thread thread;
+	private final LongAdder dropped = new LongAdder();
+	private final AtomicBoolean warnedDropped = new AtomicBoolean();
+	private final LongAdder writtenCount = new LongAdder();
+	private final LongAdder skippedCount = new LongAdder();
+
+	// only touched by the writer thread
+	/** Checksums of what was last written to each path. */
+	private final Map<String, Long> written = new HashMap<>();
+	private final Set<File> createdDirs = new HashSet<>();
+	private ZipOutputStream zipOut;
+	private int zipIndex;
+	private long zipSize;
+
+	DumpWriter(File dir, boolean zip, long maxZipSize, int queueSize, long maxWaitMillis) {
+		this.dir = dir;
+		this.zip = zip;
+		this.maxZipSize = maxZipSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.thread = new Thread(this::run, "NilLoader dump writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "NilLoader dump writer shutdown"));
+	}
+
+	/**
+	 * @param path where to write the dump, relative to the dump directory and with forward slashes
+	 */
+	void submit(String path, byte[] data) {
+		try {
+			if (!queue.offer(new Dump(path, data), maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				drop(path);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			drop(path);
+		}
+	}
+
+	private void drop(String path) {
+		dropped.increment();
+		if (warnedDropped.compareAndSet(false, true)) {
+			NilLoaderLog.log.warn("Debug dump queue is full, dropped {}; later dumps may be dropped too, the total is logged at the end of premain and at shutdown", path);
+		}
+	}
+
+	/**
+	 * Log how many dumps have been written, skipped and dropped so far.
+	 */
+	void report() {
+		long writes = writtenCount.sum();
+		long drops = dropped.sum();
+		Object[] args = {writes, writes == 1 ? "" : "s", skippedCount.sum(), drops};
+		String msg = "Wrote {} debug dump{}, skipped {} identical to what was already written, dropped {} for want of room in the queue";
+		if (drops > 0) {
+			NilLoaderLog.log.warn(msg, args);
+		} else {
+			NilLoaderLog.log.debug(msg, args);
+		}
+	}
+
+	/**
+	 * Write out everything queued so far and stop, giving up if that takes too long.
+	 */
+	void close() {
+		try {
+			if (queue.offer(END, 5, TimeUnit.SECONDS)) {
+				thread.join(TimeUnit.SECONDS.toMillis(30));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		report();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				Dump d = queue.take();
+				if (d == END) break;
+				write(d);
+			}
+		} catch (InterruptedException e) {
+			// just stop
+		} finally {
+			if (zipOut != null) {
+				try {
+					zipOut.close();
+				} catch (IOException e) {
+					NilLoaderLog.log.debug("Failed to finish {}", zipFile(zipIndex), e);
+				}
+				zipOut = null;
+			}
+		}
+	}
+
+	private void write(Dump d) {
+		CRC32 crc = new CRC32();
+		crc.update(d.data, 0, d.data.length);
+		String path = d.path;
+		if (zip) {
+			// a zip can't hold the same name twice, so later dumps that differ get a number
+			int dot = path.lastIndexOf('.');
+			if (dot <= path.lastIndexOf('/')) dot = path.length();
+			for (int i = 2; written.containsKey(path) && written.get(path) != crc.getValue(); i++) {
+				path = d.path.substring(0, dot)+"-"+i+d.path.substring(dot);
+			}
+		}
+		Long last = written.put(path, crc.getValue());
+		if (last != null && last == crc.getValue()) {
+			skippedCount.increment();
+			return;
+		}
+		try {
+			if (zip) {
+				writeZipEntry(path, d.data, crc);
+			} else {
+				File f = new File(dir, path);
+				File parent = f.getParentFile();
+				if (createdDirs.add(parent)) parent.mkdirs();
+				try (FileOutputStream fos = new FileOutputStream(f)) {
+					fos.write(d.data);
+				}
+			}
+			writtenCount.increment();
+		} catch (IOException e) {
+			written.remove(path);
+			NilLoaderLog.log.debug("Failed to write debug dump {}", path, e);
+		}
+	}
+
+	private void writeZipEntry(String path, byte[] data, CRC32 crc) throws IOException {
+		if (zipOut != null && zipSize >= maxZipSize) {
+			zipOut.close();
+			zipOut = null;
+			zipIndex++;
+		}
+		if (zipOut == null) {
+			File f = zipFile(zipIndex);
+			f.getParentFile().mkdirs();
+			zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
+			zipSize = 0;
+		}
+		ZipEntry en = new ZipEntry(path);
+		en.setSize(data.length);
+		en.setCrc(crc.getValue());
+		zipOut.putNextEntry(en);
+		zipOut.write(data);
+		zipOut.closeEntry();
+		zipSize += data.length;
+	}
+
+	private File zipFile(int index) {
+		return new File(dir.getPath()+"-"+index+".zip");
+	}
+
+}
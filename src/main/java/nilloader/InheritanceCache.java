@@ -0,0 +1,107 @@
+package nilloader;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Optional;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.cadixdev.bombe.analysis.InheritanceProvider;
+import org.cadixdev.bombe.asm.analysis.ClassProviderInheritanceProvider;
+import org.cadixdev.bombe.asm.jar.ClassLoaderClassProvider;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * Long-lived inheritance providers for remapping nilmod classes, one per class loader, so each
+ * parent class is only read and analyzed once no matter how many classes extend it.
+ */
+final class InheritanceCache {
+
+	private static final Map<ClassLoader, InheritanceProvider> byLoader = new WeakHashMap<>();
+
+	private static final LongAdder lookups = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	/**
+	 * Counts every lookup into {@link #delegate}, which is either the cache or what it caches.
+	 */
+	private static final class CountingInheritanceProvider implements InheritanceProvider {
+		private final InheritanceProvider delegate;
+		private final LongAdder counter;
+
+		CountingInheritanceProvider(InheritanceProvider delegate, LongAdder counter) {
+			this.delegate = delegate;
+			this.counter = counter;
+		}
+
+		@Override
+		public Optional<ClassInfo> provide(String klass) {
+			counter.increment();
+			return delegate.provide(klass);
+		}
+
+		@Override
+		public Optional<ClassInfo> provide(String klass, Object context) {
+			counter.increment();
+			return delegate.provide(klass, context);
+		}
+	}
+
+	/**
+	 * Like Bombe's CachingInheritanceProvider, but safe to share between the threads of a
+	 * parallel-capable loader, which all remap through the same provider.
+	 */
+	private static final class ConcurrentCachingInheritanceProvider implements InheritanceProvider {
+		private final InheritanceProvider delegate;
+		private final Map<String, Optional<ClassInfo>> cache = new ConcurrentHashMap<>();
+
+		ConcurrentCachingInheritanceProvider(InheritanceProvider delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public Optional<ClassInfo> provide(String klass) {
+			return provide(klass, null);
+		}
+
+		@Override
+		public Optional<ClassInfo> provide(String klass, Object context) {
+			Optional<ClassInfo> info = cache.get(klass);
+			if (info == null) {
+				// not computeIfAbsent, which would hold up lookups of other classes while one is read
+				info = context == null ? delegate.provide(klass) : delegate.provide(klass, context);
+				Optional<ClassInfo> raced = cache.putIfAbsent(klass, info);
+				if (raced != null) info = raced;
+			}
+			return info;
+		}
+	}
+
+	static InheritanceProvider forLoader(ClassLoader loader) {
+		if (loader == null) loader = ClassLoader.getSystemClassLoader();
+		synchronized (byLoader) {
+			InheritanceProvider ip = byLoader.get(loader);
+			if (ip == null) {
+				// the cached class info outlives any one remap, so it mustn't pin the loader
+				WeakReference<ClassLoader> ref = new WeakReference<>(loader);
+				ClassProviderInheritanceProvider cpip = new ClassProviderInheritanceProvider(Opcodes.ASM9, klass -> {
+					ClassLoader l = ref.get();
+					return l == null ? null : new ClassLoaderClassProvider(l).get(klass);
+				});
+				ip = new CountingInheritanceProvider(new ConcurrentCachingInheritanceProvider(new CountingInheritanceProvider(cpip, misses)), lookups);
+				byLoader.put(loader, ip);
+			}
+			return ip;
+		}
+	}
+
+	static long getHits() {
+		return lookups.sum()-misses.sum();
+	}
+
+	static long getMisses() {
+		return misses.sum();
+	}
+
+}
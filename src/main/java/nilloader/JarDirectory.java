@@ -0,0 +1,211 @@
+package nilloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * The entries of a jar that discovery cares about: those at its root, and those directly under
+ * {@code META-INF/nil/}. The central directory is read in one go and every other entry is
+ * skipped without so much as decoding its name. Anything this can't read itself, such as a zip64
+ * archive, is opened as a JarFile instead, without signature verification.
+ */
+final class JarDirectory implements Closeable {
+
+	private static final int END_SIG = 0x06054B50;
+	private static final int CENTRAL_SIG = 0x02014B50;
+	private static final int LOCAL_SIG = 0x04034B50;
+	private static final int END_LENGTH = 22;
+	private static final int CENTRAL_LENGTH = 46;
+	private static final int LOCAL_LENGTH = 30;
+	private static final byte[] NIL_DIR = "META-INF/nil/".getBytes(StandardCharsets.US_ASCII);
+
+	private static final class Entry {
+		final int method;
+		final long compressedSize;
+		final long localHeaderOffset;
+
+		Entry(int method, long compressedSize, long localHeaderOffset) {
+			this.method = method;
+			this.compressedSize = compressedSize;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	private final FileChannel channel;
+	/** Where the archive starts within the file, in case something was prepended to it. */
+	private long base;
+	private JarFile jar;
+	/** Name to {@link Entry}, or to {@link JarEntry} if {@link #jar} is set. */
+	private final Map<String, Object> entries = new LinkedHashMap<>();
+
+	private JarDirectory(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	static JarDirectory open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		JarDirectory out = new JarDirectory(channel);
+		try {
+			if (out.readCentralDirectory()) return out;
+		} catch (IOException | RuntimeException e) {
+			NilLoaderLog.log.debug("Failed to read the central directory of {} directly", file, e);
+		}
+		channel.close();
+		out.entries.clear();
+		out.jar = new JarFile(file, false);
+		Enumeration<JarEntry> iter = out.jar.entries();
+		while (iter.hasMoreElements()) {
+			JarEntry en = iter.nextElement();
+			if (isIndexed(en.getName())) out.entries.put(en.getName(), en);
+		}
+		return out;
+	}
+
+	/**
+	 * @return {@code false} if the archive is of a kind that has to be left to JarFile
+	 */
+	private boolean readCentralDirectory() throws IOException {
+		long size = channel.size();
+		int tailLength = (int)Math.min(size, END_LENGTH+0xFFFF);
+		ByteBuffer tail = read(size-tailLength, tailLength);
+		int end = -1;
+		for (int i = tailLength-END_LENGTH; i >= 0; i--) {
+			if (tail.getInt(i) == END_SIG) {
+				end = i;
+				break;
+			}
+		}
+		if (end == -1) return false;
+		int total = tail.getShort(end+10) & 0xFFFF;
+		long cdLength = tail.getInt(end+12) & 0xFFFFFFFFL;
+		long cdOffset = tail.getInt(end+16) & 0xFFFFFFFFL;
+		if (total == 0xFFFF || cdLength == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL) return false;
+		base = (size-tailLength+end)-cdLength-cdOffset;
+		if (base < 0 || cdLength > Integer.MAX_VALUE) return false;
+		// read rather than mapped, so the jar isn't held open (and locked, on Windows) until GC
+		ByteBuffer cd = read(base+cdOffset, (int)cdLength);
+		int p = 0;
+		for (int i = 0; i < total; i++) {
+			if (cd.getInt(p) != CENTRAL_SIG) return false;
+			int nameLength = cd.getShort(p+28) & 0xFFFF;
+			int extraLength = cd.getShort(p+30) & 0xFFFF;
+			int commentLength = cd.getShort(p+32) & 0xFFFF;
+			int name = p+CENTRAL_LENGTH;
+			if (isIndexed(cd, name, nameLength)) {
+				long compressedSize = cd.getInt(p+20) & 0xFFFFFFFFL;
+				long localHeaderOffset = cd.getInt(p+42) & 0xFFFFFFFFL;
+				if (compressedSize == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) return false;
+				byte[] nameBytes = new byte[nameLength];
+				cd.position(name);
+				cd.get(nameBytes);
+				entries.put(new String(nameBytes, StandardCharsets.UTF_8), new Entry(cd.getShort(p+10) & 0xFFFF, compressedSize, localHeaderOffset));
+			}
+			p = name+nameLength+extraLength+commentLength;
+		}
+		return true;
+	}
+
+	private static boolean isIndexed(ByteBuffer buf, int start, int length) {
+		int from = 0;
+		if (length > NIL_DIR.length) {
+			boolean nil = true;
+			for (int i = 0; i < NIL_DIR.length; i++) {
+				if (buf.get(start+i) != NIL_DIR[i]) {
+					nil = false;
+					break;
+				}
+			}
+			if (nil) from = NIL_DIR.length;
+		}
+		for (int i = from; i < length; i++) {
+			if (buf.get(start+i) == '/') return false;
+		}
+		return length > 0;
+	}
+
+	private static boolean isIndexed(String name) {
+		int slash = name.lastIndexOf('/');
+		if (slash == -1) return !name.isEmpty();
+		return slash == NIL_DIR.length-1 && name.length() > NIL_DIR.length && name.startsWith("META-INF/nil/");
+	}
+
+	/**
+	 * @return the names of every entry at the root of the jar or directly under META-INF/nil/, in
+	 * 		the order they appear in it
+	 */
+	Set<String> getNames() {
+		return Collections.unmodifiableSet(entries.keySet());
+	}
+
+	InputStream getInputStream(String name) throws IOException {
+		Object en = entries.get(name);
+		if (en == null) return null;
+		if (jar != null) return jar.getInputStream((JarEntry)en);
+		Entry e = (Entry)en;
+		if (e.compressedSize > Integer.MAX_VALUE-1) throw new IOException(name+" is too large");
+		ByteBuffer local = read(base+e.localHeaderOffset, LOCAL_LENGTH);
+		if (local.getInt(0) != LOCAL_SIG) throw new IOException("Bad local header for "+name);
+		long dataStart = base+e.localHeaderOffset+LOCAL_LENGTH+(local.getShort(26) & 0xFFFF)+(local.getShort(28) & 0xFFFF);
+		// a trailing dummy byte, which raw inflation needs to be sure it's reached the end
+		byte[] data = new byte[(int)e.compressedSize+1];
+		ByteBuffer buf = ByteBuffer.wrap(data, 0, (int)e.compressedSize);
+		readFully(buf, dataStart);
+		switch (e.method) {
+			case ZipEntry.STORED:
+				return new ByteArrayInputStream(data, 0, (int)e.compressedSize);
+			case ZipEntry.DEFLATED:
+				return new InflaterInputStream(new ByteArrayInputStream(data), new Inflater(true)) {
+					@Override
+					public void close() throws IOException {
+						super.close();
+						inf.end();
+					}
+				};
+			default:
+				throw new IOException("Unsupported compression method "+e.method+" for "+name);
+		}
+	}
+
+	private ByteBuffer read(long pos, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		readFully(buf, pos);
+		buf.clear();
+		return buf.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void readFully(ByteBuffer buf, long pos) throws IOException {
+		long start = pos-buf.position();
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, start+buf.position()) < 0) throw new EOFException();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (jar != null) {
+			jar.close();
+		} else {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,218 @@
+package nilloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Function;
+
+import org.cadixdev.bombe.type.signature.FieldSignature;
+import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.cadixdev.lorenz.MappingSet;
+import org.cadixdev.lorenz.io.MappingsReader;
+import org.cadixdev.lorenz.model.ClassMapping;
+
+import com.grack.nanojson.JsonParserException;
+import com.grack.nanojson.JsonReader;
+
+/**
+ * Reads the object for a single mapping id from mappings.json straight into the mapping model.
+ * Nothing bigger than one class entry is ever held on to, since the keys of a class entry can
+ * come in any order and it can't be added to the model until its name is known.
+ */
+final class JsonMappingsReader extends MappingsReader {
+
+	private static final class ClassEntry {
+		String from;
+		String to;
+		final List<String> methods = new ArrayList<>();
+		final List<String> fields = new ArrayList<>();
+		final List<ClassEntry> innerClasses = new ArrayList<>();
+	}
+
+	private final InputStream in;
+
+	JsonMappingsReader(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public MappingSet read(MappingSet mappings) throws IOException {
+		read(mappings, null);
+		return mappings;
+	}
+
+	/**
+	 * Read a mapping id's object into the given mapping set.
+	 * @param widens receives the object's widens, if not null
+	 * @return {@code true} if the object had widens
+	 */
+	boolean read(MappingSet mappings, WidenSet widens) throws IOException {
+		try {
+			JsonReader r = JsonReader.from(in);
+			r.object();
+			boolean hasWidens = false;
+			while (r.next()) {
+				if ("classes".equals(r.key()) && r.current() == JsonReader.Type.ARRAY) {
+					r.array();
+					while (r.next()) {
+						if (r.current() == JsonReader.Type.OBJECT) {
+							add(mappings::getOrCreateClassMapping, readClass(r));
+						} else {
+							skip(r);
+						}
+					}
+				} else if ("widen".equals(r.key()) && r.current() == JsonReader.Type.OBJECT) {
+					readWidens(r, widens == null ? new WidenSet() : widens);
+					hasWidens = true;
+				} else {
+					skip(r);
+				}
+			}
+			return hasWidens;
+		} catch (JsonParserException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private ClassEntry readClass(JsonReader r) throws JsonParserException {
+		ClassEntry out = new ClassEntry();
+		r.object();
+		while (r.next()) {
+			String key = r.key();
+			if ("from".equals(key)) {
+				out.from = readString(r);
+			} else if ("to".equals(key)) {
+				out.to = readString(r);
+			} else if ("methods".equals(key) && r.current() == JsonReader.Type.OBJECT) {
+				readPairs(r, out.methods);
+			} else if ("fields".equals(key) && r.current() == JsonReader.Type.OBJECT) {
+				readPairs(r, out.fields);
+			} else if ("inner-classes".equals(key) && r.current() == JsonReader.Type.ARRAY) {
+				r.array();
+				while (r.next()) {
+					if (r.current() == JsonReader.Type.OBJECT) {
+						out.innerClasses.add(readClass(r));
+					} else {
+						skip(r);
+					}
+				}
+			} else {
+				skip(r);
+			}
+		}
+		return out;
+	}
+
+	private void add(Function<String, ClassMapping<?, ?>> mappingCreator, ClassEntry entry) {
+		ClassMapping<?, ?> cm = mappingCreator.apply(entry.from);
+		cm.setDeobfuscatedName(entry.to);
+		for (int i = 0; i < entry.methods.size(); i += 2) {
+			cm.getOrCreateMethodMapping(MethodSignature.of(entry.methods.get(i)))
+				.setDeobfuscatedName(MethodSignature.of(entry.methods.get(i+1)).getName());
+		}
+		for (int i = 0; i < entry.fields.size(); i += 2) {
+			cm.getOrCreateFieldMapping(parseFieldSignature(entry.fields.get(i)))
+				.setDeobfuscatedName(parseFieldSignature(entry.fields.get(i+1)).getName());
+		}
+		for (ClassEntry inner : entry.innerClasses) {
+			add(cm::getOrCreateInnerClassMapping, inner);
+		}
+	}
+
+	private void readWidens(JsonReader r, WidenSet ws) throws JsonParserException {
+		r.object();
+		while (r.next()) {
+			String key = r.key();
+			if ("classes".equals(key) && r.current() == JsonReader.Type.ARRAY) {
+				r.array();
+				while (r.next()) {
+					if (r.current() == JsonReader.Type.STRING) {
+						ws.widenClasses.add(r.string());
+					} else {
+						skip(r);
+					}
+				}
+			} else if (("methods".equals(key) || "fields".equals(key)) && r.current() == JsonReader.Type.ARRAY) {
+				boolean methods = "methods".equals(key);
+				r.array();
+				while (r.next()) {
+					if (r.current() != JsonReader.Type.OBJECT) {
+						skip(r);
+						continue;
+					}
+					String owner = null;
+					String sig = null;
+					r.object();
+					while (r.next()) {
+						if ("owner".equals(r.key())) {
+							owner = readString(r);
+						} else if ("sig".equals(r.key())) {
+							sig = readString(r);
+						} else {
+							skip(r);
+						}
+					}
+					if (methods) {
+						ws.widenMethods.computeIfAbsent(owner, k -> new HashSet<>()).add(MethodSignature.of(sig));
+					} else {
+						ws.widenFields.computeIfAbsent(owner, k -> new HashSet<>()).add(parseFieldSignature(sig));
+					}
+				}
+			} else {
+				skip(r);
+			}
+		}
+	}
+
+	/**
+	 * Read every key and value of the object at the current value, one after the other.
+	 */
+	private void readPairs(JsonReader r, List<String> out) throws JsonParserException {
+		r.object();
+		while (r.next()) {
+			out.add(r.key());
+			out.add(r.value().toString());
+		}
+	}
+
+	/**
+	 * @return the current value if it's a string, otherwise null
+	 */
+	private String readString(JsonReader r) throws JsonParserException {
+		if (r.current() == JsonReader.Type.STRING) return r.string();
+		skip(r);
+		return null;
+	}
+
+	private void skip(JsonReader r) throws JsonParserException {
+		switch (r.current()) {
+			case OBJECT:
+				r.object();
+				while (r.next()) skip(r);
+				break;
+			case ARRAY:
+				r.array();
+				while (r.next()) skip(r);
+				break;
+			default:
+				break;
+		}
+	}
+
+	private static FieldSignature parseFieldSignature(String val) {
+		int colon = val.indexOf(':');
+		if (colon >= 0) {
+			return FieldSignature.of(val.substring(0, colon), val.substring(colon+1));
+		} else {
+			return new FieldSignature(val);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
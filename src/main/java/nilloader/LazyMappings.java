@@ -0,0 +1,240 @@
+package nilloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.cadixdev.lorenz.MappingSet;
+
+import com.grack.nanojson.JsonParser;
+import com.grack.nanojson.JsonParserException;
+
+/**
+ * Every mapping set a nilmod jar ships, kept as the raw bytes of each mapping id's section until
+ * that id is asked for. A mod only ever uses one of them, so the rest are never parsed.
+ */
+final class LazyMappings {
+
+	private final File source;
+	/** Set if the mappings came from mappings.bin. */
+	private NilMappingsFile binary;
+	/** Otherwise, the whole of mappings.json... */
+	private byte[] json;
+	/** ...and where each mapping id's object lies within it. */
+	private Map<String, int[]> jsonSections;
+
+	private final Map<String, MappingSet> mappings = new HashMap<>();
+	private final Map<String, WidenSet> widens = new HashMap<>();
+	private boolean frozen;
+
+	private LazyMappings(File source, NilMappingsFile binary, byte[] json, Map<String, int[]> jsonSections) {
+		this.source = source;
+		this.binary = binary;
+		this.json = json;
+		this.jsonSections = jsonSections;
+	}
+
+	private static LazyMappings binary(File source, byte[] data) throws IOException {
+		return new LazyMappings(source, NilMappingsFile.wrap(data), null, null);
+	}
+
+	private static LazyMappings json(File source, byte[] data) throws IOException {
+		return new LazyMappings(source, null, data, indexJson(data));
+	}
+
+	/**
+	 * @param isBinary whether the stream is of mappings.bin rather than mappings.json
+	 */
+	static LazyMappings load(File source, InputStream in, boolean isBinary) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int read;
+		while ((read = in.read(buf)) != -1) {
+			baos.write(buf, 0, read);
+		}
+		return isBinary ? binary(source, baos.toByteArray()) : json(source, baos.toByteArray());
+	}
+
+	static LazyMappings readFrom(DataInputStream in, File source) throws IOException {
+		boolean isBinary = in.readBoolean();
+		byte[] data = new byte[in.readInt()];
+		in.readFully(data);
+		return isBinary ? binary(source, data) : json(source, data);
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		byte[] data = binary != null ? binary.getData() : json;
+		out.writeBoolean(binary != null);
+		out.writeInt(data.length);
+		out.write(data);
+	}
+
+	synchronized Set<String> getIds() {
+		if (frozen) return Collections.unmodifiableSet(mappings.keySet());
+		return binary != null ? binary.getIds() : Collections.unmodifiableSet(jsonSections.keySet());
+	}
+
+	/**
+	 * @return the mapping set with the given id, parsing it if this is the first time it's been
+	 * 		asked for, or null if there's no such id
+	 */
+	synchronized MappingSet getMappings(String id) {
+		materialize(id);
+		return mappings.get(id);
+	}
+
+	/**
+	 * @return the widens that go with the mapping set with the given id, or null if there are none
+	 */
+	synchronized WidenSet getWidens(String id) {
+		materialize(id);
+		return widens.get(id);
+	}
+
+	/**
+	 * Parse the given ids, if they haven't been already, then let go of everything else.
+	 */
+	synchronized void retain(Collection<String> ids) {
+		for (String id : ids) {
+			materialize(id);
+		}
+		mappings.keySet().retainAll(ids);
+		widens.keySet().retainAll(ids);
+		frozen = true;
+		binary = null;
+		json = null;
+		jsonSections = null;
+	}
+
+	private void materialize(String id) {
+		if (frozen || mappings.containsKey(id)) return;
+		if (binary != null ? !binary.getIds().contains(id) : !jsonSections.containsKey(id)) return;
+		long start = System.nanoTime();
+		MappingSet ms = MappingSet.create();
+		WidenSet ws = new WidenSet();
+		boolean hasWidens;
+		try {
+			if (binary != null) {
+				hasWidens = binary.read(id, ms, ws);
+			} else {
+				int[] section = jsonSections.get(id);
+				hasWidens = new JsonMappingsReader(new ByteArrayInputStream(json, section[0], section[1])).read(ms, ws);
+			}
+		} catch (Exception e) {
+			NilLoaderLog.log.warn("Failed to parse mapping set {} in {}", id, source, e);
+			mappings.put(id, null);
+			return;
+		}
+		mappings.put(id, ms);
+		if (hasWidens) widens.put(id, ws);
+		long nanos = System.nanoTime()-start;
+		StartupProfile profile = NilAgent.getProfile();
+		if (profile != null) profile.mappingsParsed(source, id, nanos);
+		NilLoaderLog.log.debug("Parsed mapping set {} from {} in {}ms", id, source, nanos/1000000);
+	}
+
+	/**
+	 * Find the extent of each object value at the top level of a JSON object, without parsing
+	 * any of them. Values that aren't objects are skipped, like they are when parsing.
+	 */
+	private static Map<String, int[]> indexJson(byte[] data) throws IOException {
+		Map<String, int[]> out = new LinkedHashMap<>();
+		int i = skipWhitespace(data, 0);
+		if (data.length-i >= 3 && (data[i] & 0xFF) == 0xEF && (data[i+1] & 0xFF) == 0xBB && (data[i+2] & 0xFF) == 0xBF) {
+			i = skipWhitespace(data, i+3);
+		}
+		i = expect(data, i, '{');
+		i = skipWhitespace(data, i);
+		if (i < data.length && data[i] == '}') return out;
+		while (true) {
+			int keyStart = skipWhitespace(data, i);
+			expect(data, keyStart, '"');
+			int keyEnd = skipString(data, keyStart);
+			String key = decodeString(data, keyStart, keyEnd);
+			i = skipWhitespace(data, expect(data, skipWhitespace(data, keyEnd), ':'));
+			int valueStart = i;
+			i = skipValue(data, i);
+			if (data[valueStart] == '{') {
+				out.put(key, new int[] {valueStart, i-valueStart});
+			}
+			i = skipWhitespace(data, i);
+			if (i < data.length && data[i] == '}') return out;
+			i = expect(data, i, ',');
+		}
+	}
+
+	private static String decodeString(byte[] data, int start, int end) throws IOException {
+		for (int j = start+1; j < end-1; j++) {
+			if (data[j] == '\\') {
+				try {
+					return JsonParser.any().from(new ByteArrayInputStream(data, start, end-start)).toString();
+				} catch (JsonParserException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+		return new String(data, start+1, end-start-2, StandardCharsets.UTF_8);
+	}
+
+	private static int skipWhitespace(byte[] data, int i) {
+		while (i < data.length && (data[i] == ' ' || data[i] == '\t' || data[i] == '\n' || data[i] == '\r')) i++;
+		return i;
+	}
+
+	private static int expect(byte[] data, int i, char c) throws IOException {
+		if (i >= data.length || data[i] != c) throw new IOException("Expected '"+c+"' at offset "+i);
+		return i+1;
+	}
+
+	/**
+	 * @return the offset just past the closing quote of the string starting at {@code i}
+	 */
+	private static int skipString(byte[] data, int i) throws IOException {
+		for (i = i+1; i < data.length; i++) {
+			if (data[i] == '\\') {
+				i++;
+			} else if (data[i] == '"') {
+				return i+1;
+			}
+		}
+		throw new IOException("Unterminated string");
+	}
+
+	/**
+	 * @return the offset just past the value starting at {@code i}
+	 */
+	private static int skipValue(byte[] data, int i) throws IOException {
+		int depth = 0;
+		while (i < data.length) {
+			byte b = data[i];
+			if (b == '"') {
+				i = skipString(data, i);
+				if (depth == 0) return i;
+				continue;
+			} else if (b == '{' || b == '[') {
+				depth++;
+			} else if (b == '}' || b == ']') {
+				if (depth == 0) return i;
+				depth--;
+				if (depth == 0) return i+1;
+			} else if (depth == 0 && (b == ',' || b == ' ' || b == '\t' || b == '\n' || b == '\r')) {
+				return i;
+			}
+			i++;
+		}
+		if (depth != 0) throw new IOException("Unexpected end of mappings");
+		return i;
+	}
+
+}
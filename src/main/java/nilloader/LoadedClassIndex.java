@@ -0,0 +1,145 @@
+package nilloader;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Which class loaders have loaded a class of a given name, for the handful of checks before
+ * freeze that need to know. The first few checks just scan the loaded classes. Nothing is recorded
+ * until checks keep coming, at which point every class loaded so far is snapshotted and only loads
+ * after that are tracked. Each name/loader pair takes one slot of an open-addressed table, rather
+ * than every name getting a set of its own.
+ */
+final class LoadedClassIndex {
+
+	/** Stands in for the bootstrap loader, as an empty slot is null. */
+	private static final Object BOOTSTRAP = new Object();
+	private static final int SCANS_BEFORE_INDEXING = 4;
+
+	private final Instrumentation instrumentation;
+	private volatile boolean tracking;
+	private String[] names = new String[4096];
+	private Object[] loaders = new Object[4096];
+	private int size;
+	private int tracked;
+	private int scans;
+
+	LoadedClassIndex(Instrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Called for every class as it's loaded. Does nothing until the index is first queried.
+	 * @param name the class's internal name
+	 */
+	void onLoad(String name, ClassLoader loader) {
+		if (!tracking || name == null) return;
+		synchronized (this) {
+			if (add(name.replace('/', '.'), loader)) tracked++;
+		}
+	}
+
+	/**
+	 * @param name the class's binary name
+	 */
+	boolean isLoaded(String name) {
+		synchronized (this) {
+			if (tracking || scans++ >= SCANS_BEFORE_INDEXING) return !getLoaders(name).isEmpty();
+		}
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			if (c.getName().equals(name)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find every loaded class with one of the given names, without starting to track loads.
+	 * @param names binary names
+	 */
+	List<Class<?>> findLoaded(Set<String> names) {
+		List<Class<?>> out = new ArrayList<>();
+		for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+			if (names.contains(c.getName())) out.add(c);
+		}
+		return out;
+	}
+
+	/**
+	 * @param name the class's binary name
+	 * @return every loader that has loaded a class with the given name, which may include null
+	 * 		for the bootstrap loader
+	 */
+	synchronized List<ClassLoader> getLoaders(String name) {
+		if (!tracking) {
+			// start tracking first, so nothing loaded while taking the snapshot is missed
+			tracking = true;
+			for (Class<?> c : instrumentation.getAllLoadedClasses()) {
+				add(c.getName(), c.getClassLoader());
+			}
+		}
+		List<ClassLoader> out = null;
+		int mask = names.length-1;
+		for (int i = hash(name) & mask; names[i] != null; i = (i+1) & mask) {
+			if (names[i].equals(name)) {
+				if (out == null) out = new ArrayList<>(1);
+				out.add(loaders[i] == BOOTSTRAP ? null : (ClassLoader)loaders[i]);
+			}
+		}
+		return out == null ? Collections.emptyList() : out;
+	}
+
+	private boolean add(String name, ClassLoader loader) {
+		if ((size+1)*2 > names.length) grow();
+		Object key = loader == null ? BOOTSTRAP : loader;
+		int mask = names.length-1;
+		int i = hash(name) & mask;
+		while (names[i] != null) {
+			if (loaders[i] == key && names[i].equals(name)) return false;
+			i = (i+1) & mask;
+		}
+		names[i] = name;
+		loaders[i] = key;
+		size++;
+		return true;
+	}
+
+	private void grow() {
+		String[] oldNames = names;
+		Object[] oldLoaders = loaders;
+		names = new String[oldNames.length*2];
+		loaders = new Object[oldLoaders.length*2];
+		int mask = names.length-1;
+		for (int j = 0; j < oldNames.length; j++) {
+			if (oldNames[j] == null) continue;
+			int i = hash(oldNames[j]) & mask;
+			while (names[i] != null) i = (i+1) & mask;
+			names[i] = oldNames[j];
+			loaders[i] = oldLoaders[j];
+		}
+	}
+
+	private static int hash(String name) {
+		int h = name.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return how many of the classes in the index were recorded as they loaded, rather than
+	 * 		found in the snapshot
+	 */
+	synchronized int getTrackedCount() {
+		return tracked;
+	}
+
+	synchronized int getCapacity() {
+		return names.length;
+	}
+
+}
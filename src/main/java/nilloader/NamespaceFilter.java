@@ -0,0 +1,115 @@
+package nilloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prefix trie of package namespaces that no registered transformer or widen targets. Classes in
+ * these namespaces are rejected before the transformation pipeline allocates anything.
+ */
+final class NamespaceFilter {
+
+	/**
+	 * Namespaces that make up the bulk of JVM startup class loading. Only the ones nobody asked
+	 * for end up in the trie.
+	 */
+	private static final String[] CANDIDATES = {
+		"java/", "javax/", "jdk/", "sun/", "com/sun/"
+	};
+
+	static final NamespaceFilter NONE = new NamespaceFilter(new Node());
+
+	private static final LongAdder rejected = new LongAdder();
+	private static final LongAdder passed = new LongAdder();
+
+	private static final class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+		boolean terminal;
+
+		Node child(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) return children[i];
+			}
+			return null;
+		}
+
+		Node getOrCreateChild(char c) {
+			Node n = child(c);
+			if (n == null) {
+				n = new Node();
+				keys = Arrays.copyOf(keys, keys.length+1);
+				children = Arrays.copyOf(children, children.length+1);
+				keys[keys.length-1] = c;
+				children[children.length-1] = n;
+			}
+			return n;
+		}
+	}
+
+	private final Node root;
+
+	private NamespaceFilter(Node root) {
+		this.root = root;
+	}
+
+	/**
+	 * @return {@code true} if the given internal class name is in a namespace nobody targets
+	 */
+	boolean covers(String className) {
+		Node n = root;
+		for (int i = 0, len = className.length(); i < len; i++) {
+			n = n.child(className.charAt(i));
+			if (n == null) return false;
+			if (n.terminal) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Like {@link #covers(String)}, but counts the result towards the fast-reject statistics.
+	 */
+	boolean rejects(String className) {
+		if (covers(className)) {
+			rejected.increment();
+			return true;
+		}
+		passed.increment();
+		return false;
+	}
+
+	static long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	static long getPassedCount() {
+		return passed.sum();
+	}
+
+	/**
+	 * @param targets internal names of every class something wants to transform or widen
+	 */
+	static NamespaceFilter build(Collection<String> targets) {
+		List<String> namespaces = new ArrayList<>();
+		outer: for (String ns : CANDIDATES) {
+			for (String t : targets) {
+				if (t.startsWith(ns)) continue outer;
+			}
+			namespaces.add(ns);
+		}
+		if (namespaces.isEmpty()) return NONE;
+		Node root = new Node();
+		for (String ns : namespaces) {
+			Node n = root;
+			for (int i = 0; i < ns.length(); i++) {
+				n = n.getOrCreateChild(ns.charAt(i));
+			}
+			n.terminal = true;
+		}
+		return new NamespaceFilter(root);
+	}
+
+}
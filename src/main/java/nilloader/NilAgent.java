@@ -2,7 +2,6 @@ package nilloader;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -15,24 +14,30 @@ import java.lang.reflect.Method;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.function.Function;
-import java.util.jar.JarEntry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BinaryOperator;
 import java.util.jar.JarFile;
+import org.cadixdev.bombe.analysis.CachingInheritanceProvider;
 import org.cadixdev.bombe.asm.analysis.ClassProviderInheritanceProvider;
 import org.cadixdev.bombe.asm.jar.ClassLoaderClassProvider;
 import org.cadixdev.bombe.type.signature.FieldSignature;
@@ -42,23 +47,16 @@ import org.cadixdev.lorenz.asm.LorenzRemapper;
 import org.cadixdev.lorenz.io.srg.tsrg.TSrgReader;
 import org.cadixdev.lorenz.model.ClassMapping;
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.FieldVisitor;
-import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.Remapper;
 import org.objectweb.asm.tree.ClassNode;
 
-import com.grack.nanojson.JsonArray;
-import com.grack.nanojson.JsonObject;
-import com.grack.nanojson.JsonParser;
-
 import nilloader.api.ASMTransformer;
 import nilloader.api.ClassRetransformer;
 import nilloader.api.ClassTransformer;
 import nilloader.api.NilMetadata;
-import nilloader.api.NonLoadingClassWriter;
 import nilloader.api.lib.mini.MiniTransformer;
 import nilloader.api.lib.qdcss.QDCSS;
 import nilloader.impl.fixes.NewKnotClassLoaderTransformer;
@@ -73,10 +71,37 @@ public class NilAgent {
 	private static final boolean DEBUG_DECOMPILE_MODREMAPPED = Boolean.getBoolean("nil.debug.decompile.modRemapped");
 	private static final boolean DEBUG_DUMP_ALL = Boolean.getBoolean("nil.debug.dump.all");
 	private static final boolean DEBUG_FLIP_DIR_LAYOUT = Boolean.getBoolean("nil.debug.dump.flipDirLayout") || Boolean.getBoolean("nil.debug.decompile.flipDirLayout");
+	private static final boolean DEBUG_DUMP_ZIP = "zip".equals(System.getProperty("nil.debug.dump.format"));
+	private static final long DEBUG_DUMP_ZIP_MAX_SIZE = Long.getLong("nil.debug.dump.zip.maxMiB", 256)*1024*1024;
+	private static final int DEBUG_DUMP_QUEUE_SIZE = Integer.getInteger("nil.debug.dump.queueSize", 4096);
+	private static final long DEBUG_DUMP_MAX_WAIT = Long.getLong("nil.debug.dump.maxWaitMillis", 100);
 	private static final boolean DEBUG_CLASSLOADING = Boolean.getBoolean("nil.debug.classLoading");
 	private static final String DEBUG_MAPPINGS_PATH = System.getProperty("nil.debug.mappings");
+	private static final boolean DEBUG_PROFILE = Boolean.getBoolean("nil.debug.profile");
+	private static final boolean TRANSFORM_CACHE = Boolean.getBoolean("nil.transformCache");
+	private static final long TRANSFORM_CACHE_MAX_SIZE = Long.getLong("nil.transformCache.maxMiB", 256)*1024*1024;
+	private static final long TRANSFORM_MEMO_MAX_SIZE = Long.getLong("nil.transformMemo.maxMiB", 16)*1024*1024;
+	// the stages of a Dispatcher, in the order they run
+	/** Print every class as it's loaded or redefined. */
+	private static final int STAGE_TRACE = 1;
+	/** Record loads in the {@link LoadedClassIndex}, until freeze. */
+	private static final int STAGE_TRACK = 2;
+	/** Remap classes from nilmods to their active mappings, once frozen. */
+	private static final int STAGE_REMAP = 4;
+	/** Run every transformer but retransformers. */
+	private static final int STAGE_PATCH = 8;
+	/** Run retransformers, which have to be replayed on retransformation. */
+	private static final int STAGE_RETRANSFORMERS = 16;
+	/** Apply widening, which likewise has to be replayed. */
+	private static final int STAGE_WIDEN = 32;
+	/** Dump classes nobody changed, and mod classes as remapped. */
+	private static final int STAGE_DUMP = 64;
+	private static final int STAGES_TRANSFORM = STAGE_PATCH | STAGE_RETRANSFORMERS | STAGE_WIDEN | STAGE_DUMP;
+	private static final int DISCOVERY_THREADS = Integer.getInteger("nil.discoveryThreads", Math.min(Runtime.getRuntime().availableProcessors(), 8));
+	private static final boolean DISABLE_DISCOVERY_CACHE = Boolean.getBoolean("nil.disableDiscoveryCache");
 	
 	private static Executor decompilerThread;
+	private static DumpWriter dumpWriter;
 	
 	private static MappingSet debugMappings = null;
 	
@@ -91,24 +116,103 @@ public class NilAgent {
 		}
 	}
 	
+	/**
+	 * What a single jar turned out to contain. Produced off the premain thread, so it must not
+	 * touch any of the global state until it's {@link NilAgent#apply applied}.
+	 */
+	static final class Discovery {
+		final File file;
+		final List<NilMetadata> found = new ArrayList<>();
+		LazyMappings mappings;
+		long nanos;
+		long mappingsNanos = -1;
+		/** Whether anything went wrong reading the jar, in which case it mustn't be cached. */
+		boolean failed;
+		
+		Discovery(File file) {
+			this.file = file;
+		}
+	}
+	
 	private static final Map<String, NilMetadata> mods = new LinkedHashMap<>();
 	private static final Map<String, List<EntrypointListener>> entrypointListeners = new HashMap<>();
 	private static final List<ClassTransformer> transformers = new CopyOnWriteArrayList<>();
+	private static volatile TransformerIndex transformerIndex = TransformerIndex.EMPTY;
+	private static volatile NamespaceFilter namespaceFilter = NamespaceFilter.NONE;
 	private static final Set<File> additionalSearchPath = new LinkedHashSet<>();
 	private static final Set<File> additionalClassPath = new LinkedHashSet<>();
 	private static final Map<File, String> classSources = new LinkedHashMap<>();
-	private static final Map<URL, String> classSourceURLs = new LinkedHashMap<>();
+	private static volatile CodeSourceIndex codeSources = CodeSourceIndex.EMPTY;
 	
-	private static final Map<String, Map<String, WidenSet>> modWidens = new HashMap<>();
-	private static final Map<String, Map<String, MappingSet>> modMappings = new HashMap<>();
+	private static final Map<String, LazyMappings> modMappings = new HashMap<>();
 	private static final Map<String, String> activeModMappings = new HashMap<>();
+	private static volatile Map<String, CompiledMappings> compiledMappings = Collections.emptyMap();
 	
 	private static WidenSet finalWidens;
+	private static TransformCache transformCache;
+	private static final TransformMemo transformMemo = TRANSFORM_MEMO_MAX_SIZE > 0 ? new TransformMemo(TRANSFORM_MEMO_MAX_SIZE) : null;
+	private static DiscoveryCache discoveryCache;
+	private static StartupProfile profile;
 	private static final Set<String> widenSubjects = new HashSet<>();
 	
-	private static ClassFileTransformer loadTracker;
+	/**
+	 * The one class file transformer NilLoader registers for each stage of startup, or each kind
+	 * of transformer the JVM distinguishes between. Rather than transformers being added and
+	 * removed as startup goes on, stages are switched on and off, and a class is handed to the JVM
+	 * just once per dispatcher no matter how many of them touch it.
+	 */
+	private static final class Dispatcher implements ClassFileTransformer {
+		private final PrintStream err = System.err;
+		private volatile int stages;
+		
+		Dispatcher(int stages) {
+			this.stages = stages;
+		}
+		
+		synchronized void enable(int stages) {
+			this.stages |= stages;
+		}
+		
+		synchronized void disable(int stages) {
+			this.stages &= ~stages;
+		}
+		
+		@Override
+		public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+			int stages = this.stages;
+			if ((stages & STAGE_TRACE) != 0) {
+				err.printf("%s class %s via %s from %s%n", classBeingRedefined == null ? "Loading" : "Redefining", className, loader,
+						(protectionDomain != null && protectionDomain.getCodeSource() != null) ? protectionDomain.getCodeSource().getLocation() : "[unknown]");
+			}
+			if (className == null) return null;
+			if ((stages & STAGE_TRACK) != 0 && classBeingRedefined == null) {
+				LoadedClassIndex index = loadedClasses;
+				if (index != null) index.onLoad(className, loader);
+			}
+			byte[] bytes = classfileBuffer;
+			byte[] remapped = null;
+			if ((stages & STAGE_REMAP) != 0 && classBeingRedefined == null) {
+				remapped = remapModClass(loader, className, protectionDomain, bytes);
+				if (remapped != null) bytes = remapped;
+			}
+			if ((stages & STAGES_TRANSFORM) != 0) {
+				bytes = NilAgent.transform(loader, className, bytes, classBeingRedefined != null, stages & STAGES_TRANSFORM);
+			}
+			if ((stages & STAGE_DUMP) != 0 && remapped != null) {
+				dumpModRemapped(className, remapped);
+			}
+			// returning the buffer we were given would count as a modification
+			return bytes == classfileBuffer ? null : bytes;
+		}
+	}
+	
+	private static Dispatcher dispatcher;
 	
-	private static Map<String, Set<ClassLoader>> loadedClasses = new HashMap<>();
+	private static volatile LoadedClassIndex loadedClasses;
+	/** Binary names of already loaded classes to retransform in the next batch. */
+	private static final Set<String> pendingRetransforms = new LinkedHashSet<>();
+	/** Binary names of possibly already loaded classes to widen in the next batch. */
+	private static final Set<String> pendingWidens = new LinkedHashSet<>();
 	
 	private static Instrumentation instrumentation;
 	
@@ -136,30 +240,35 @@ public class NilAgent {
 			return;
 		}
 		instrumentation = ins;
+		if (DEBUG_PROFILE) {
+			StartupProfile p = new StartupProfile();
+			profile = p;
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> p.write("shutdown"), "NilLoader profile writer"));
+		}
+		if (DEBUG_DUMP || DEBUG_DUMP_ALL || DEBUG_DUMP_MODREMAPPED || DEBUG_DECOMPILE || DEBUG_DECOMPILE_MODREMAPPED) {
+			dumpWriter = new DumpWriter(new File(".nil/debug-out"), DEBUG_DUMP_ZIP, DEBUG_DUMP_ZIP_MAX_SIZE, DEBUG_DUMP_QUEUE_SIZE, DEBUG_DUMP_MAX_WAIT);
+		}
+		loadedClasses = new LoadedClassIndex(ins);
+		// only retransformers and widening need to be replayed on retransformation, so only they go
+		// through a retransform-capable dispatcher, along with tracing so it sees retransformations
+		boolean split = ins.isRetransformClassesSupported();
+		int replayed = STAGE_RETRANSFORMERS | STAGE_WIDEN | (DEBUG_CLASSLOADING ? STAGE_TRACE : 0);
+		int dump = DEBUG_DUMP_ALL || DEBUG_DUMP_MODREMAPPED || DEBUG_DECOMPILE_MODREMAPPED ? STAGE_DUMP : 0;
+		dispatcher = new Dispatcher(STAGE_TRACK | STAGE_PATCH | dump | (split ? 0 : replayed));
+		ins.addTransformer(dispatcher);
+		if (split) {
+			ins.addTransformer(new Dispatcher(replayed), true);
+		}
 		if (DEBUG_CLASSLOADING) {
-			PrintStream err = System.err;
-			ins.addTransformer((loader, className, classBeingRedefined, protectionDomain, classfileBuffer) -> {
-				err.printf("%s class %s via %s from %s%n", classBeingRedefined == null ? "Loading" : "Redefining", className, loader,
-						(protectionDomain != null && protectionDomain.getCodeSource() != null) ? protectionDomain.getCodeSource().getLocation() : "[unknown]");
-				return classfileBuffer;
-			}, ins.isRetransformClassesSupported());
-		}
-		loadTracker = (loader, className, classBeingRedefined, protectionDomain, classfileBuffer) -> {
-			if (loadedClasses != null && classBeingRedefined == null) memoize(className, loader);
-			return classfileBuffer;
-		};
-		ins.addTransformer(loadTracker);
-		for (Class<?> c : ins.getAllLoadedClasses()) {
-			if (DEBUG_CLASSLOADING) {
+			for (Class<?> c : ins.getAllLoadedClasses()) {
 				ProtectionDomain protectionDomain = c.getProtectionDomain();
 				System.err.printf("Already loaded class %s via %s from %s%n", c.getName().replace('.', '/'), c.getClassLoader(),
 						(protectionDomain != null && protectionDomain.getCodeSource() != null) ? protectionDomain.getCodeSource().getLocation() : "[unknown]");
 			}
-			memoize(c.getName(), c.getClassLoader());
 		}
 		
 		// TODO it'd be nice to do this in a more generic way instead of needing loader-specific hacks
-		if (loadedClasses.containsKey("cpw.mods.fml.relauncher.RelaunchClassLoader")) {
+		if (loadedClasses.isLoaded("cpw.mods.fml.relauncher.RelaunchClassLoader")) {
 			try {
 				Class<?> relauncherClazz = Class.forName("cpw.mods.fml.relauncher.FMLRelauncher");
 				Class<?> loaderClazz = Class.forName("cpw.mods.fml.relauncher.RelaunchClassLoader");
@@ -183,10 +292,6 @@ public class NilAgent {
 		// TODO - #2
 //		registerTransformer(new ModuleClassLoaderTransformer());
 		
-		ins.addTransformer((loader, className, classBeingRedefined, protectionDomain, classfileBuffer) -> {
-			if (className == null) return classfileBuffer;
-			return NilAgent.transform(loader, className, classfileBuffer, classBeingRedefined != null);
-		}, ins.isRetransformClassesSupported());
 		for (Runnable r : NilLogManager.initLogs) {
 			r.run();
 		}
@@ -209,6 +314,10 @@ public class NilAgent {
 			throw new AssertionError(e);
 		}
 		NilLoaderLog.log.info("NilLoader v{} initialized{}, logging via {}", mods.get("nilloader").version, hijacked ? " via hijack" : "", NilLoaderLog.log.getImplementationName());
+		long discoveryStart = System.nanoTime();
+		if (!DISABLE_DISCOVERY_CACHE) {
+			discoveryCache = DiscoveryCache.load(new File(".nil/cache/discovery.bin"), mods.get("nilloader").version);
+		}
 		File ourFile = null;
 		try {
 			ourFile = new File(us.toURI());
@@ -234,14 +343,21 @@ public class NilAgent {
 				}
 			}
 		}
-		discoverDirectory(new File("mods"), "jar", "nilmod");
-		discoverDirectory(new File("nilmods"), "jar");
+		List<File> candidates = new ArrayList<>();
+		listCandidates(candidates, new File("mods"), "jar", "nilmod");
+		listCandidates(candidates, new File("nilmods"), "jar");
 		String additional = System.getProperty("nil.discoverPath");
 		if (additional != null) {
 			for (String path : additional.split(File.pathSeparator)) {
-				discoverDirectory(new File(path), "jar");
+				listCandidates(candidates, new File(path), "jar");
 			}
 		}
+		discoverAll(candidates);
+		if (discoveryCache != null) {
+			discoveryCache.save();
+			discoveryCache = null;
+		}
+		if (profile != null) profile.discoveryWall(System.nanoTime()-discoveryStart);
 		for (NilMetadata meta : mods.values()) {
 			for (Map.Entry<String, String> en : meta.entrypoints.entrySet()) {
 				if (!entrypointListeners.containsKey(en.getKey())) {
@@ -250,6 +366,7 @@ public class NilAgent {
 				entrypointListeners.get(en.getKey()).add(new EntrypointListener(meta.id, en.getValue()));
 			}
 		}
+		if (profile != null) profile.premainDone();
 		if (nilAgents == 1) {
 			completePremain(ins);
 		} else {
@@ -259,16 +376,6 @@ public class NilAgent {
 		}
 	}
 	
-	private static void memoize(String name, ClassLoader classLoader) {
-		if (loadedClasses.containsKey(name)) {
-			loadedClasses.get(name).add(classLoader);
-		} else {
-			Set<ClassLoader> set = new HashSet<>();
-			set.add(classLoader);
-			loadedClasses.put(name, set);
-		}
-	}
-
 	private static String nth(int n) {
 		String prefix = "";
 		if (n%100 >= 20) {
@@ -284,6 +391,7 @@ public class NilAgent {
 	}
 
 	private static void completePremain(Instrumentation ins) {
+		if (profile != null) profile.completePremainStarted();
 		StringBuilder discoveries = new StringBuilder();
 		for (NilMetadata meta : mods.values()) {
 			discoveries.append("\n\t- ");
@@ -295,15 +403,7 @@ public class NilAgent {
 		}
 		NilLoaderLog.log.info("Discovered {} nilmod{}:{}", mods.size(), mods.size() == 1 ? "" : "s", discoveries);
 		StringBuilder javaClassPathAddn = new StringBuilder();
-		for (Map.Entry<File, String> en : classSources.entrySet()) {
-			File f = en.getKey();
-			try {
-				classSourceURLs.put(f.toURI().toURL(), en.getValue());
-				classSourceURLs.put(f.getCanonicalFile().toURI().toURL(), en.getValue());
-			} catch (IOException e) {
-				NilLoaderLog.log.error("Failed to add {} to class map", f, e);
-			}
-		}
+		codeSources = CodeSourceIndex.build(classSources);
 		for (File f : additionalSearchPath) {
 			try {
 				// This originally passed in a JarFile subclass that filtered its entries, but the
@@ -320,7 +420,7 @@ public class NilAgent {
 		}
 		System.setProperty("java.class.path", System.getProperty("java.class.path")+javaClassPathAddn);
 		
-		if (loadedClasses.containsKey("cpw.mods.fml.relauncher.RelaunchClassLoader")) {
+		if (loadedClasses.isLoaded("cpw.mods.fml.relauncher.RelaunchClassLoader")) {
 			NilLoaderLog.log.info("HACK: Injecting nilmods into RelaunchClassLoader post-hoc");
 			try {
 				Class<?> relauncherClazz = Class.forName("cpw.mods.fml.relauncher.FMLRelauncher");
@@ -341,53 +441,30 @@ public class NilAgent {
 			}
 		}
 		
-		ins.addTransformer((loader, className, classBeingRedefined, protectionDomain, classfileBuffer) -> {
-			if (className.startsWith("nilloader/")) return classfileBuffer; // break class loading loop when hijacking
-			try {
-				if (classBeingRedefined != null || className == null) return classfileBuffer;
-				if (protectionDomain != null && protectionDomain.getCodeSource() != null) {
-					String definer = getDefiningMod(protectionDomain.getCodeSource().getLocation(), 0);
-					if (definer != null && isFrozen()) {
-						MappingSet mappings = getActiveMappings(definer);
-						if (mappings != null) {
-							NilLoaderLog.log.debug("Remapping mod class {} via mapping set {}", className, NilAgent.getActiveMappingId(definer));
-							classfileBuffer = remap(loader, classfileBuffer, mappings);
-							if (DEBUG_DUMP_MODREMAPPED) {
-								writeDump(className, classfileBuffer, "modRemapped", "class");
-							}
-							if (DEBUG_DECOMPILE_MODREMAPPED) {
-								byte[] finalBys = classfileBuffer.clone();
-								decompilerThread.execute(() -> {
-									writeDump(className, Decompiler.decompile(className, finalBys).getBytes(StandardCharsets.UTF_8), "modRemapped", "java");
-								});
-							}
-						}
-					}
-				}
-			} catch (Throwable t) {
-				NilLoaderLog.log.error("Exception while remapping class {}", className, t);
-			}
-			return classfileBuffer;
-		});
+		// the built-in loader fixes have to be in place before any nilmod code runs
+		retransformPending();
 		fireEntrypoint(hijacked ? "hijack" : "premain");
 		NilLoaderLog.log.debug("{} class transformer{} registered", transformers.size(), transformers.size() == 1 ? "" : "s");
+		compileMappings();
 		frozen = true;
+		dispatcher.enable(STAGE_REMAP);
+		NilLoaderLog.log.debug("Transformer index covers {} target class{}, {} transformer{} see every class",
+				transformerIndex.getTargetCount(), transformerIndex.getTargetCount() == 1 ? "" : "es",
+				transformerIndex.getUntargetedCount(), transformerIndex.getUntargetedCount() == 1 ? "" : "s");
 		// clean up stuff we won't be using anymore
-		ins.removeTransformer(loadTracker);
-		for (Map.Entry<String, Map<String, MappingSet>> en : modMappings.entrySet()) {
-			String id = getActiveMappingId(en.getKey());
-			MappingSet ms = en.getValue().get(id);
-			if (ms != null) {
-				en.setValue(Collections.singletonMap(id, ms));
-			} else {
-				en.setValue(Collections.emptyMap());
-			}
+		dispatcher.disable(STAGE_TRACK);
+		// mods sharing a jar share its mappings, but may have picked different ids from them
+		Map<LazyMappings, Set<String>> activeIds = new IdentityHashMap<>();
+		for (Map.Entry<String, LazyMappings> en : modMappings.entrySet()) {
+			activeIds.computeIfAbsent(en.getValue(), k -> new HashSet<>()).add(getActiveMappingId(en.getKey()));
+		}
+		for (Map.Entry<LazyMappings, Set<String>> en : activeIds.entrySet()) {
+			en.getKey().retain(en.getValue());
 		}
 		// bake the widens
 		finalWidens = new WidenSet();
-		for (Map.Entry<String, Map<String, WidenSet>> en : modWidens.entrySet()) {
-			String id = getActiveMappingId(en.getKey());
-			WidenSet val = en.getValue().get(id);
+		for (Map.Entry<String, LazyMappings> en : modMappings.entrySet()) {
+			WidenSet val = en.getValue().getWidens(getActiveMappingId(en.getKey()));
 			if (val != null) {
 				finalWidens.widenClasses.addAll(val.widenClasses);
 				for (Map.Entry<String, Set<MethodSignature>> men : val.widenMethods.entrySet()) {
@@ -404,44 +481,203 @@ public class NilAgent {
 				}
 			}
 		}
-		checkWidenLoad(finalWidens.widenClasses);
-		checkWidenLoad(finalWidens.widenFields.keySet());
-		checkWidenLoad(finalWidens.widenMethods.keySet());
-		modWidens.clear();
+		widenSubjects.addAll(finalWidens.widenClasses);
+		widenSubjects.addAll(finalWidens.widenFields.keySet());
+		widenSubjects.addAll(finalWidens.widenMethods.keySet());
+		// a new index even though the transformers are the same, as the memo is keyed on it and
+		// widening changes what comes out
+		setIndex(TransformerIndex.build(transformers));
+		NilLoaderLog.log.debug("Fast-rejected {} class loads in untargeted namespaces so far, {} went through the pipeline",
+				NamespaceFilter.getRejectedCount(), NamespaceFilter.getPassedCount());
+		if (!Boolean.getBoolean("nil.disableJmx")) {
+			TransformerMetrics.publish();
+		}
+		queueWiden(finalWidens.widenClasses);
+		queueWiden(finalWidens.widenFields.keySet());
+		queueWiden(finalWidens.widenMethods.keySet());
+		retransformPending();
+		NilLoaderLog.log.debug("Loaded class index held {} class{} ({} tracked as they loaded) in {} slots",
+				loadedClasses.size(), loadedClasses.size() == 1 ? "" : "es", loadedClasses.getTrackedCount(), loadedClasses.getCapacity());
 		loadedClasses = null;
+		if (TRANSFORM_CACHE) {
+			try {
+				transformCache = TransformCache.open(new File(".nil/cache/transformed"), computeTransformFingerprint(), TRANSFORM_CACHE_MAX_SIZE);
+			} catch (IOException e) {
+				NilLoaderLog.log.warn("Failed to fingerprint nilmods for the transform cache", e);
+			}
+		}
+		if (dumpWriter != null) {
+			dumpWriter.report();
+		}
+		if (profile != null) {
+			profile.completePremainDone();
+			profile.write("premain");
+		}
+	}
+
+	/**
+	 * Hash everything that can influence what the transformers do to a class, so cached output
+	 * from a previous run with different nilmods is never reused.
+	 */
+	private static byte[] computeTransformFingerprint() throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+		byte[] buf = new byte[8192];
+		for (NilMetadata meta : mods.values()) {
+			updateDigest(md, meta.id);
+			updateDigest(md, meta.version);
+			updateDigest(md, getActiveMappingId(meta.id));
+			if (meta.source.isFile()) {
+				try (InputStream in = new FileInputStream(meta.source)) {
+					int read;
+					while ((read = in.read(buf)) != -1) {
+						md.update(buf, 0, read);
+					}
+				}
+			} else {
+				updateDigest(md, meta.source.getAbsolutePath());
+			}
+		}
+		for (ClassTransformer ct : transformers) {
+			updateDigest(md, ct.getClass().getName());
+		}
+		for (String s : new TreeSet<>(finalWidens.widenClasses)) {
+			updateDigest(md, s);
+		}
+		for (String owner : new TreeSet<>(finalWidens.widenMethods.keySet())) {
+			for (MethodSignature sig : finalWidens.widenMethods.get(owner)) {
+				updateDigest(md, owner+"."+sig);
+			}
+		}
+		for (String owner : new TreeSet<>(finalWidens.widenFields.keySet())) {
+			for (FieldSignature sig : finalWidens.widenFields.get(owner)) {
+				updateDigest(md, owner+"."+sig);
+			}
+		}
+		return md.digest();
+	}
+
+	private static void updateDigest(MessageDigest md, String s) {
+		md.update(s.getBytes(StandardCharsets.UTF_8));
+		md.update((byte)0);
+	}
+
+	private static void setIndex(TransformerIndex index) {
+		if (DEBUG_DUMP_ALL || index.getUntargetedCount() > 0) {
+			namespaceFilter = NamespaceFilter.NONE;
+		} else {
+			Set<String> targets = new HashSet<>(index.getTargetNames());
+			targets.addAll(widenSubjects);
+			namespaceFilter = NamespaceFilter.build(targets);
+		}
+		transformerIndex = index;
+		if (transformMemo != null) transformMemo.clear();
 	}
 
-	private static void checkWidenLoad(Set<String> classes) {
-		widenSubjects.addAll(classes);
+	private static void queueWiden(Set<String> classes) {
 		for (String s : classes) {
-			if (loadedClasses.containsKey(s.replace('/', '.'))) {
-				try {
-					for (ClassLoader cl : loadedClasses.get(s.replace('/', '.'))) {
-						try {
-							instrumentation.retransformClasses(Class.forName(s, false, cl));
-						} catch (ClassNotFoundException e) {}
+			pendingWidens.add(s.replace('/', '.'));
+		}
+	}
+
+	/**
+	 * Retransform every already loaded class that a ClassRetransformer registered since the last
+	 * call targets, or that needs widening, in a single batch. If the batch fails, none of it
+	 * took effect, so each class is retried on its own to find out which ones are the problem.
+	 */
+	private static void retransformPending() {
+		if (pendingRetransforms.isEmpty() && pendingWidens.isEmpty()) return;
+		Set<String> names = new HashSet<>(pendingRetransforms);
+		names.addAll(pendingWidens);
+		List<Class<?>> classes = loadedClasses.findLoaded(names);
+		if (!classes.isEmpty()) {
+			long start = System.nanoTime();
+			try {
+				instrumentation.retransformClasses(classes.toArray(new Class<?>[classes.size()]));
+				for (Class<?> c : classes) {
+					logRetransformed(c);
+				}
+				NilLoaderLog.log.debug("Retransformed {} already loaded class{} in one batch in {}ms",
+						classes.size(), classes.size() == 1 ? "" : "es", (System.nanoTime()-start)/1000000);
+			} catch (Throwable t) {
+				NilLoaderLog.log.debug("Batched retransformation of {} class{} failed, retrying one at a time", classes.size(), classes.size() == 1 ? "" : "es", t);
+				for (Class<?> c : classes) {
+					try {
+						instrumentation.retransformClasses(c);
+						logRetransformed(c);
+					} catch (UnsupportedOperationException e) {
+						if (pendingWidens.contains(c.getName())) {
+							NilLoaderLog.log.warn("Failed to widen access of {} as this JVM can't retransform access - expect fireworks!", c.getName());
+						} else {
+							NilLoaderLog.log.warn("Failed to retransform {}", c.getName(), e);
+						}
+					} catch (Throwable t2) {
+						if (pendingWidens.contains(c.getName())) {
+							NilLoaderLog.log.warn("Failed to widen access of {} - expect fireworks!", c.getName(), t2);
+						} else {
+							NilLoaderLog.log.warn("Failed to retransform {}", c.getName(), t2);
+						}
 					}
-					NilLoaderLog.log.debug("Widened access of {} via retransformation as it was already loaded", s);
-				} catch (UnsupportedOperationException e) {
-					NilLoaderLog.log.warn("Failed to widen access of {} as this JVM can't retransform access - expect fireworks!", s);
-				} catch (Throwable t) {
-					NilLoaderLog.log.warn("Failed to widen access of {} - expect fireworks!", s, t);
 				}
 			}
 		}
+		pendingRetransforms.clear();
+		pendingWidens.clear();
+	}
+
+	private static void logRetransformed(Class<?> c) {
+		if (pendingWidens.contains(c.getName())) {
+			NilLoaderLog.log.debug("Widened access of {} via retransformation as it was already loaded", c.getName());
+		}
+		if (pendingRetransforms.contains(c.getName())) {
+			NilLoaderLog.log.debug("Retransformed {} in {}", c.getName(), c.getClassLoader());
+		}
 	}
 
 	private static byte[] remap(ClassLoader loader, byte[] clazz, MappingSet mappings) {
+		// not the shared InheritanceCache, as Lorenz completes class mappings with
+		// ClassInfo.provideParents, which isn't safe on class info other threads can see
 		ClassProviderInheritanceProvider cpip = new ClassProviderInheritanceProvider(Opcodes.ASM9, new ClassLoaderClassProvider(loader == null ? ClassLoader.getSystemClassLoader() : loader));
-		LorenzRemapper lr = new LorenzRemapper(mappings, cpip);
+		return remap(clazz, new LorenzRemapper(mappings, new CachingInheritanceProvider(cpip)));
+	}
+
+	private static byte[] remap(byte[] clazz, Remapper remapper) {
 		ClassReader reader = new ClassReader(clazz);
 		ClassWriter writer = new ClassWriter(reader, 0);
-		ClassRemapper cr = new ClassRemapper(writer, lr);
+		ClassRemapper cr = new ClassRemapper(writer, remapper);
 		reader.accept(cr, 0);
 		return writer.toByteArray();
 	}
 
-	private static void discoverDirectory(File dir, String... extensions) {
+	/**
+	 * Flatten each nilmod's active mappings into lookup tables before mod classes start being
+	 * remapped. Mods sharing a jar share their MappingSets, and so their tables.
+	 */
+	private static void compileMappings() {
+		long start = System.nanoTime();
+		Map<MappingSet, CompiledMappings> byIdentity = new IdentityHashMap<>();
+		Map<String, CompiledMappings> out = new HashMap<>();
+		for (String mod : modMappings.keySet()) {
+			MappingSet ms = getActiveMappings(mod);
+			if (ms == null) continue;
+			CompiledMappings cm = byIdentity.get(ms);
+			if (cm == null) {
+				cm = CompiledMappings.compile(ms);
+				byIdentity.put(ms, cm);
+				NilLoaderLog.log.debug("Compiled mapping set {} for {} with {} class{} and {} member{}", getActiveMappingId(mod), mod,
+						cm.getClassCount(), cm.getClassCount() == 1 ? "" : "es", cm.getMemberCount(), cm.getMemberCount() == 1 ? "" : "s");
+			}
+			out.put(mod, cm);
+		}
+		compiledMappings = out;
+		NilLoaderLog.log.debug("Compiled {} mapping set{} in {}ms", byIdentity.size(), byIdentity.size() == 1 ? "" : "s", (System.nanoTime()-start)/1000000);
+	}
+
+	private static void listCandidates(List<File> out, File dir, String... extensions) {
 		NilLoaderLog.log.debug("Searching for nilmods in {}", dir.getPath());
 		String[] trailers = new String[extensions.length];
 		for (int i = 0; i < extensions.length; i++) {
@@ -458,103 +694,121 @@ public class NilAgent {
 				}
 			}
 			if (match) {
-				discover(f, true);
+				out.add(f);
 			}
 		}
 	}
 	
+	/**
+	 * Scan the given jars concurrently, then install whatever they contain in the order they were
+	 * given, so mod order doesn't depend on which scan finishes first.
+	 */
+	private static void discoverAll(List<File> files) {
+		int threads = Math.min(files.size(), DISCOVERY_THREADS);
+		if (threads <= 1) {
+			for (File f : files) {
+				apply(scan(f), true);
+			}
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<ForkJoinTask<Discovery>> tasks = new ArrayList<>(files.size());
+			for (File f : files) {
+				tasks.add(pool.submit(() -> scan(f)));
+			}
+			for (ForkJoinTask<Discovery> task : tasks) {
+				apply(task.join(), true);
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
 	private static boolean discover(File file, boolean addToSearchPath) {
-		List<NilMetadata> found = new ArrayList<>();
-		Map<String, MappingSet> mappings = new HashMap<>();
-		Map<String, WidenSet> widens = new HashMap<>();
-		try (JarFile jar = new JarFile(file)) {
-			Enumeration<JarEntry> iter = jar.entries();
-			while (iter.hasMoreElements()) {
-				JarEntry en = iter.nextElement();
-				String name = en.getName();
+		return apply(scan(file), addToSearchPath);
+	}
+	
+	private static Discovery scan(File file) {
+		long start = System.nanoTime();
+		DiscoveryCache cache = discoveryCache;
+		DiscoveryCache.Key key = cache == null ? null : cache.key(file);
+		if (key != null) {
+			Discovery d = cache.get(key, file);
+			if (d != null) {
+				for (NilMetadata meta : d.found) {
+					NilLoaderLog.log.debug("Discovered nilmod {} in {} (cached)", meta.id, file);
+				}
+				d.nanos = System.nanoTime()-start;
+				return d;
+			}
+		}
+		Discovery d = new Discovery(file);
+		List<NilMetadata> found = d.found;
+		try (JarDirectory jar = JarDirectory.open(file)) {
+			String jsonMappings = null;
+			String binaryMappings = null;
+			for (String name : jar.getNames()) {
 				if (name.endsWith(".nilmod.css") && !name.contains("/") && !name.equals("nilloader.nilmod.css")) {
 					String id = name.substring(0, name.length()-11);
 					NilLoaderLog.log.debug("Discovered nilmod {} in {}", id, file);
-					try (InputStream is = jar.getInputStream(en)) {
-						QDCSS metaCss = QDCSS.load(file.getName()+"/"+en.getName(), is);
+					try (InputStream is = jar.getInputStream(name)) {
+						QDCSS metaCss = QDCSS.load(file.getName()+"/"+name, is);
 						NilMetadata meta = NilMetadata.from(id, metaCss, file);
 						found.add(meta);
 					}
 				}
 				if (name.equals("META-INF/nil/mappings.json")) {
-					try (InputStream in = jar.getInputStream(en)) {
-						try {
-							JsonObject obj = JsonParser.object().from(in);
-							for (Map.Entry<String, Object> mapping : obj.entrySet()) {
-								if (mapping.getValue() instanceof JsonObject) {
-									MappingSet ms = MappingSet.create();
-									JsonObject mobj = (JsonObject)mapping.getValue();
-									JsonArray classes = mobj.getArray("classes");
-									if (classes != null) {
-										for (Object clazzo : classes) {
-											if (clazzo instanceof JsonObject) {
-												parseClassMapping(ms::getOrCreateClassMapping, (JsonObject)clazzo);
-											}
-										}
-									}
-									JsonObject widen = mobj.getObject("widen");
-									if (widen != null) {
-										WidenSet ws = new WidenSet();
-										JsonArray wclasses = widen.getArray("classes");
-										if (wclasses != null) {
-											for (Object clazz : wclasses) {
-												if (clazz instanceof String) ws.widenClasses.add(clazz.toString());
-											}
-										}
-										JsonArray wmethods = widen.getArray("methods");
-										if (wmethods != null) {
-											for (Object o : wmethods) {
-												if (o instanceof JsonObject) {
-													JsonObject m = (JsonObject)o;
-													String owner = m.getString("owner");
-													if (!ws.widenMethods.containsKey(owner)) {
-														ws.widenMethods.put(owner, new HashSet<>());
-													}
-													ws.widenMethods.get(owner).add(MethodSignature.of(m.getString("sig")));
-												}
-											}
-										}
-										JsonArray wfields = widen.getArray("fields");
-										if (wfields != null) {
-											for (Object o : wfields) {
-												if (o instanceof JsonObject) {
-													JsonObject m = (JsonObject)o;
-													String owner = m.getString("owner");
-													if (!ws.widenFields.containsKey(owner)) {
-														ws.widenFields.put(owner, new HashSet<>());
-													}
-													ws.widenFields.get(owner).add(parseFieldSignature(m.getString("sig")));
-												}
-											}
-										}
-										widens.put(mapping.getKey(), ws);
-									}
-									mappings.put(mapping.getKey(), ms);
-								}
-							}
-						} catch (Exception e) {
-							NilLoaderLog.log.warn("Failed to parse mappings in {}", file, e);
-						}
+					jsonMappings = name;
+				}
+				if (name.equals(NilMappingsFile.PATH)) {
+					binaryMappings = name;
+				}
+			}
+			if (binaryMappings != null || jsonMappings != null) {
+				// the binary form is preferred when a jar ships both, as it's much cheaper to read
+				long mappingsStart = System.nanoTime();
+				try (InputStream in = jar.getInputStream(binaryMappings != null ? binaryMappings : jsonMappings)) {
+					try {
+						d.mappings = LazyMappings.load(file, in, binaryMappings != null);
+					} catch (Exception e) {
+						NilLoaderLog.log.warn("Failed to parse mappings in {}", file, e);
+						d.failed = true;
 					}
 				}
+				d.mappingsNanos = System.nanoTime()-mappingsStart;
 			}
 		} catch (IOException e) {
 			NilLoaderLog.log.warn("Failed to discover nilmods in {}", file, e);
+			d.failed = true;
+		}
+		if (key != null && !d.failed) {
+			cache.put(key, d);
 		}
-		if (!found.isEmpty()) {
+		d.nanos = System.nanoTime()-start;
+		return d;
+	}
+	
+	private static boolean apply(Discovery d, boolean addToSearchPath) {
+		File file = d.file;
+		if (profile != null) {
+			profile.discovered(file, d.nanos);
+			if (d.mappingsNanos >= 0) {
+				for (NilMetadata meta : d.found) {
+					profile.mappingsLoaded(meta.id, d.mappingsNanos);
+				}
+			}
+		}
+		if (!d.found.isEmpty()) {
 			if (addToSearchPath) {
 				additionalSearchPath.add(file);
 			}
 			additionalClassPath.add(file);
-			for (NilMetadata meta : found) {
+			for (NilMetadata meta : d.found) {
 				classSources.put(file, meta.id);
-				modMappings.put(meta.id, mappings);
-				modWidens.put(meta.id, widens);
+				if (d.mappings != null) {
+					modMappings.put(meta.id, d.mappings);
+				}
 				install(meta);
 			}
 			return true;
@@ -562,45 +816,6 @@ public class NilAgent {
 		return false;
 	}
 
-	private static void parseClassMapping(Function<String, ClassMapping<?, ?>> mappingCreator, JsonObject clazz) {
-		ClassMapping<?, ?> cm = mappingCreator.apply(clazz.getString("from"));
-		cm.setDeobfuscatedName(clazz.getString("to"));
-		JsonObject methods = clazz.getObject("methods");
-		if (methods != null) {
-			for (Map.Entry<String, Object> method : methods.entrySet()) {
-				cm.getOrCreateMethodMapping(MethodSignature.of(method.getKey()))
-					.setDeobfuscatedName(MethodSignature.of(method.getValue().toString()).getName());
-			}
-		}
-		JsonObject fields = clazz.getObject("fields");
-		if (fields != null) {
-			for (Map.Entry<String, Object> field : fields.entrySet()) {
-				FieldSignature from = parseFieldSignature(field.getKey());
-				FieldSignature to = parseFieldSignature(field.getValue().toString());
-				
-				cm.getOrCreateFieldMapping(from)
-					.setDeobfuscatedName(to.getName());
-			}
-		}
-		JsonArray innerClasses = clazz.getArray("inner-classes");
-		if (innerClasses != null) {
-			for (Object innerClass : innerClasses) {
-				if (innerClass instanceof JsonObject) {
-					parseClassMapping(cm::getOrCreateInnerClassMapping, (JsonObject)innerClass);
-				}
-			}
-		}
-	}
-
-	private static FieldSignature parseFieldSignature(String val) {
-		int colon = val.indexOf(':');
-		if (colon >= 0) {
-			return FieldSignature.of(val.substring(0, colon), val.substring(colon+1));
-		} else {
-			return new FieldSignature(val);
-		}
-	}
-
 	private static void discover(String id, ClassLoader classLoader, File src) {
 		try {
 			NilLoaderLog.log.debug("Attempting to discover nilmod with ID {} from the classpath", id);
@@ -626,6 +841,7 @@ public class NilAgent {
 				if (l.fired) continue;
 				l.fired = true;
 				String oldActiveMod = activeMod; // in case of recursive entrypoints
+				long start = System.nanoTime();
 				try {
 					activeMod = l.id;
 					NilLoaderLog.log.debug("Notifying {} of entrypoint {}", l.id, entrypoint);
@@ -642,6 +858,7 @@ public class NilAgent {
 					NilLoaderLog.log.error("Failed to invoke entrypoint {} for nilmod {}", entrypoint, l.id, t);
 				} finally {
 					activeMod = oldActiveMod;
+					if (profile != null) profile.entrypointFired(entrypoint, l.id, l.className, System.nanoTime()-start);
 				}
 			}
 		}
@@ -655,103 +872,175 @@ public class NilAgent {
 		mods.put(meta.id, meta);
 	}
 	
-	private static int makePublic(int access) {
-		return (access & ~(Opcodes.ACC_PRIVATE|Opcodes.ACC_PROTECTED)) | Opcodes.ACC_PUBLIC;
+	/**
+	 * @return the remapped class, or null if it isn't from a nilmod with mappings
+	 */
+	private static byte[] remapModClass(ClassLoader loader, String className, ProtectionDomain protectionDomain, byte[] classBytes) {
+		// nilmods are never on the bootstrap classpath
+		if (loader == null || namespaceFilter.covers(className)) return null;
+		if (className.startsWith("nilloader/")) return null; // break class loading loop when hijacking
+		try {
+			if (protectionDomain != null && protectionDomain.getCodeSource() != null) {
+				String definer = codeSources.get(protectionDomain.getCodeSource());
+				if (definer != null) {
+					CompiledMappings mappings = compiledMappings.get(definer);
+					if (mappings != null) {
+						NilLoaderLog.log.debug("Remapping mod class {} via mapping set {}", className, NilAgent.getActiveMappingId(definer));
+						long start = System.nanoTime();
+						byte[] out = remap(classBytes, mappings.getRemapper(loader));
+						TransformerMetrics.MOD_REMAP.record(System.nanoTime()-start);
+						return out;
+					}
+				}
+			}
+		} catch (Throwable t) {
+			NilLoaderLog.log.error("Exception while remapping class {}", className, t);
+		}
+		return null;
+	}
+	
+	private static void dumpModRemapped(String className, byte[] classBytes) {
+		if (DEBUG_DUMP_MODREMAPPED) {
+			writeDump(className, classBytes, "modRemapped", "class");
+		}
+		if (DEBUG_DECOMPILE_MODREMAPPED) {
+			byte[] finalBys = classBytes.clone();
+			decompilerThread.execute(() -> {
+				writeDump(className, Decompiler.decompile(className, finalBys).getBytes(StandardCharsets.UTF_8), "modRemapped", "java");
+			});
+		}
 	}
 	
 	public static byte[] transform(ClassLoader loader, String className, byte[] classBytes, boolean isRetransforming) {
+		return transform(loader, className, classBytes, isRetransforming, STAGES_TRANSFORM);
+	}
+	
+	/**
+	 * @param stages which of {@link #STAGES_TRANSFORM} to run
+	 */
+	private static byte[] transform(ClassLoader loader, String className, byte[] classBytes, boolean isRetransforming, int stages) {
+		if (namespaceFilter.rejects(className)) return classBytes;
 		String verb = isRetransforming ? "retransform" : "transform";
 		byte[] orig = DEBUG_DUMP || DEBUG_DECOMPILE ? classBytes : null;
+		TransformerIndex index = transformerIndex;
+		TransformerIndex.Entry entry = index.get(className);
+		boolean plain = (stages & STAGE_PATCH) != 0 && entry.transformers.length > 0;
+		boolean retransformers = (stages & STAGE_RETRANSFORMERS) != 0 && entry.retransformers.length > 0;
+		boolean widen = (stages & STAGE_WIDEN) != 0 && widenSubjects.contains(className);
+		boolean dumpAll = DEBUG_DUMP_ALL && (stages & STAGE_DUMP) != 0;
+		if (!plain && !retransformers && !widen && !dumpAll) return classBytes;
+		long transformStart = profile == null ? 0 : System.nanoTime();
+		int inLength = classBytes.length;
 		try {
-			List<ASMTransformer> asm = new ArrayList<>();
-			List<ClassTransformer> raw = new ArrayList<>();
-			for (ClassTransformer ct : transformers) {
+			// dumping has no say in the output
+			int memoStages = stages & ~STAGE_DUMP;
+			long checksum = 0;
+			if (transformMemo != null) {
+				checksum = TransformMemo.checksum(classBytes);
+				byte[] memoized = transformMemo.get(loader, className, checksum, memoStages, classBytes, index);
+				if (memoized != null) {
+					if (memoized != classBytes) ClassHierarchyCache.forLoader(loader).record(memoized);
+					if (profile != null) profile.transformed(className, System.nanoTime()-transformStart, inLength, memoized.length);
+					return memoized;
+				}
+			}
+			byte[] input = classBytes;
+			// the retransform-capable dispatcher sees the plain one's output, which mustn't be
+			// confused with input to the plain one in the cache, so only plain patching is cached
+			TransformCache cache = (stages & STAGE_PATCH) == 0 ? null : transformCache;
+			byte[] inputHash = null;
+			if (cache != null) {
+				inputHash = TransformCache.hash(classBytes);
+				byte[] cached = cache.get(loader, className, inputHash);
+				if (cached != null) {
+					if (transformMemo != null) transformMemo.put(loader, false, className, checksum, memoStages, input, cached, index);
+					ClassHierarchyCache.forLoader(loader).record(cached);
+					if (profile != null) profile.transformed(className, System.nanoTime()-transformStart, inLength, cached.length);
+					return cached;
+				}
+			}
+			boolean failed = false;
+			ClassBuffer buf = new ClassBuffer(loader, className, classBytes);
+			ClassTransformer[] toRun;
+			if (plain && retransformers) {
+				toRun = Arrays.copyOf(entry.transformers, entry.transformers.length+entry.retransformers.length);
+				System.arraycopy(entry.retransformers, 0, toRun, entry.transformers.length, entry.retransformers.length);
+			} else {
+				toRun = plain ? entry.transformers : retransformers ? entry.retransformers : new ClassTransformer[0];
+			}
+			// mini transformers can't see the loader when deciding whether or how to patch, so their
+			// output can go to other loaders too, as long as no frames were computed along the way
+			boolean loaderIndependent = true;
+			for (ClassTransformer ct : toRun) {
+				if (!(ct instanceof MiniTransformer)) loaderIndependent = false;
+				TransformerMetrics.Timer timer = TransformerMetrics.get(ct);
 				if (ct instanceof ASMTransformer) {
 					ASMTransformer at = (ASMTransformer)ct;
 					try {
-						if (at.canTransform(loader, className)) {
-							asm.add(at);
-						}
+						if (!at.canTransform(loader, className)) continue;
 					} catch (Throwable t) {
 						NilLoaderLog.log.error("Failed to check if {} can be {}ed by {} - assuming the answer is no", className, verb, ct.getClass().getName(), t);
+						continue;
+					}
+					if (at instanceof MiniTransformer && ((MiniTransformer)at).isStreamable() && !buf.hasNode()) {
+						// only the patched methods need to be parsed; see ClassBuffer
+						MiniTransformer mt = (MiniTransformer)at;
+						buf.addStage(ct.getClass().getName(), timer, (next, recomputeFrames) -> mt.createStreamingVisitor(loader, next, recomputeFrames));
+						continue;
+					}
+					ClassNode node = buf.modifyNode();
+					long start = System.nanoTime();
+					try {
+						if (at instanceof MiniTransformer) {
+							if (((MiniTransformer)at).transform(loader, node, buf.getFrameMethods())) {
+								buf.requireFrames();
+							}
+						} else if (at.transform(loader, node)) {
+							buf.requireFrames();
+						}
+						timer.record(System.nanoTime()-start);
+					} catch (Throwable t) {
+						timer.record(System.nanoTime()-start, true);
+						NilLoaderLog.log.error("Failed to {} {} via transformer {}", verb, className, ct.getClass().getName(), t);
+						failed = true;
 					}
 				} else {
-					raw.add(ct);
-				}
-			}
-			boolean changed = false;
-			boolean failed = false;
-			if (!asm.isEmpty()) {
-				changed = true;
-				ClassReader reader = new ClassReader(classBytes);
-				ClassNode clazz = new ClassNode();
-				reader.accept(clazz, 0);
-				boolean frames = false;
-				for (ASMTransformer ct : asm) {
+					byte[] in = buf.getBytes();
+					long start = System.nanoTime();
 					try {
-						frames |= ct.transform(loader, clazz);
+						byte[] out = ct.transform(loader, className, in);
+						timer.record(System.nanoTime()-start);
+						buf.setBytes(out);
 					} catch (Throwable t) {
+						timer.record(System.nanoTime()-start, true);
 						NilLoaderLog.log.error("Failed to {} {} via transformer {}", verb, className, ct.getClass().getName(), t);
 						failed = true;
 					}
 				}
-
-				ClassWriter writer = new NonLoadingClassWriter(loader, frames ? ClassWriter.COMPUTE_FRAMES : ClassWriter.COMPUTE_MAXS);
-				clazz.accept(writer);
-				classBytes = writer.toByteArray();
 			}
-			for (ClassTransformer ct : raw) {
-				try {
-					if ((classBytes = ct.transform(loader, className, classBytes)) != orig) {
-						changed = true;
-					}
-				} catch (Throwable t) {
-					NilLoaderLog.log.error("Failed to {} {} via transformer {}", verb, className, ct.getClass().getName(), t);
-					failed = true;
+			if (widen) {
+				NilLoaderLog.log.debug("Applying widening to {}", className);
+				if (buf.hasNode()) {
+					long start = System.nanoTime();
+					finalWidens.apply(buf.modifyNode());
+					TransformerMetrics.WIDEN.record(System.nanoTime()-start);
+				} else {
+					buf.addStage("widening", TransformerMetrics.WIDEN, (next, recomputeFrames) -> finalWidens.visitor(className, next));
 				}
 			}
-			if (widenSubjects.contains(className)) {
-				NilLoaderLog.log.debug("Applying widening to {}", className);
-				Set<FieldSignature> fields = finalWidens.widenFields.getOrDefault(className, Collections.emptySet());
-				Set<MethodSignature> methods = finalWidens.widenMethods.getOrDefault(className, Collections.emptySet());
-				ClassReader cr = new ClassReader(classBytes);
-				ClassWriter cw = new ClassWriter(cr, 0) {
-					@Override
-					protected ClassLoader getClassLoader() {
-						return loader;
-					}
-				};
-				cr.accept(new ClassVisitor(Opcodes.ASM9, cw) {
-					@Override
-					public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-						if (finalWidens.widenClasses.contains(name)) {
-							NilLoaderLog.log.debug("Making class {} public", name);
-							access = makePublic(access);
-						}
-						super.visit(version, access, name, signature, superName, interfaces);
-					}
-					
-					@Override
-					public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-						if (methods.contains(MethodSignature.of(name, descriptor))) {
-							NilLoaderLog.log.debug("Making method {}.{}{} public", className, name, descriptor);
-							access = makePublic(access);
-						}
-						return super.visitMethod(access, name, descriptor, signature, exceptions);
-					}
-					
-					@Override
-					public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
-						if (fields.contains(FieldSignature.of(name, descriptor))) {
-							NilLoaderLog.log.debug("Making field {}.{}:{} public", className, name, descriptor);
-							access = makePublic(access);
-						}
-						return super.visitField(access, name, descriptor, signature, value);
-					}
-					
-				}, 0);
-				changed = true;
-				classBytes = cw.toByteArray();
+			classBytes = buf.getBytes();
+			failed |= buf.hasFailed();
+			boolean changed = buf.isModified();
+			if (profile != null) profile.transformed(className, System.nanoTime()-transformStart, inLength, classBytes.length);
+			boolean shared = loaderIndependent && !buf.hasComputedFrames();
+			if (inputHash != null && changed && !failed) {
+				cache.put(loader, shared, className, inputHash, classBytes);
+			}
+			if (transformMemo != null && !failed) {
+				transformMemo.put(loader, shared, className, checksum, memoStages, input, changed ? classBytes : input, index);
+			}
+			if (changed) {
+				ClassHierarchyCache.forLoader(loader).record(classBytes);
 			}
 			if (changed) {
 				String dumpName = className;
@@ -779,7 +1068,7 @@ public class NilAgent {
 						writeDump(fdumpName, Decompiler.decompile(fdumpName, fafter).getBytes(StandardCharsets.UTF_8), "after", "java");
 					});
 				}
-			} else if (DEBUG_DUMP_ALL || failed) {
+			} else if (dumpAll || failed) {
 				String dumpName = className;
 				byte[] bys = classBytes;
 				if (debugMappings != null && !className.startsWith("java/") && !className.startsWith("sun/") && !className.startsWith("javax/")) {
@@ -801,20 +1090,10 @@ public class NilAgent {
 	}
 	
 	static void writeDump(String className, byte[] classBytes, String what, String ext) {
+		DumpWriter writer = dumpWriter;
+		if (writer == null) return;
 		String classNameDots = className.replace('/', '.');
-		File dir = new File(".nil/debug-out", DEBUG_FLIP_DIR_LAYOUT ? what : classNameDots);
-		dir.mkdirs();
-		File f = new File(dir, (DEBUG_FLIP_DIR_LAYOUT ? classNameDots : what)+"."+ext);
-		try {
-			FileOutputStream fos = new FileOutputStream(f);
-			try {
-				fos.write(classBytes);
-			} finally {
-				fos.close();
-			}
-		} catch (IOException e) {
-			NilLoaderLog.log.debug("Failed to write {} {} to {}", what, ext, f, e);
-		}
+		writer.submit(DEBUG_FLIP_DIR_LAYOUT ? what+"/"+classNameDots+"."+ext : classNameDots+"/"+what+"."+ext, classBytes);
 	}
 	
 	/**
@@ -825,6 +1104,14 @@ public class NilAgent {
 		return activeMod;
 	}
 	
+	static TransformCache getTransformCache() {
+		return transformCache;
+	}
+	
+	static StartupProfile getProfile() {
+		return profile;
+	}
+	
 	public static boolean isFrozen() {
 		return frozen;
 	}
@@ -834,47 +1121,45 @@ public class NilAgent {
 	}
 	
 	public static MappingSet getActiveMappings(String mod) {
-		return modMappings.getOrDefault(mod, Collections.emptyMap()).getOrDefault(getActiveMappingId(mod), null);
+		LazyMappings lm = modMappings.get(mod);
+		return lm == null ? null : lm.getMappings(getActiveMappingId(mod));
 	}
 	
+	/**
+	 * @param depth unused; {@code jar:} and {@code union:} locations are always unwrapped
+	 */
 	public static String getDefiningMod(URL codeSource, int depth) {
-		String raw = classSourceURLs.get(codeSource);
-		if (raw == null && depth < 5) {
-			return getDefiningMod(NilAgentPart.getJarURL(codeSource), depth+1);
-		}
-		return raw;
+		return codeSources.get(codeSource);
+	}
+
+	/**
+	 * @return what {@link nilloader.api.NonLoadingClassWriter} works out common superclasses
+	 * 		with, for classes of the given loader
+	 */
+	public static BinaryOperator<String> getCommonSuperClassFinder(ClassLoader loader) {
+		return ClassHierarchyCache.forLoader(loader)::getCommonSuperClass;
 	}
 
 	public static void registerTransformer(ClassTransformer transformer) {
 		if (frozen) throw new IllegalStateException("Transformers must be registered during or before the premain/hijack entrypoints");
+		TransformerMetrics.register(transformer, activeMod == null ? "nilloader" : activeMod);
 		if (transformer instanceof ClassRetransformer) {
 			ClassRetransformer cr = (ClassRetransformer)transformer;
 			transformers.add(transformer);
+			setIndex(transformerIndex.with(transformer));
+			// already loaded targets are retransformed in one batch before entrypoints run or at freeze
 			for (String s : cr.getTargets()) {
-				String dots = s.replace('/', '.');
-				if (loadedClasses.containsKey(dots)) {
-					try {
-						for (ClassLoader cl : loadedClasses.get(dots)) {
-							try {
-								instrumentation.retransformClasses(Class.forName(dots, false, cl));
-								NilLoaderLog.log.debug("Retransformed {} in {}", s, cl);
-							} catch (ClassNotFoundException e) {
-								NilLoaderLog.log.debug("Cannot retransform {} in {}", s, cl, e);
-							}
-						}
-					} catch (Throwable t) {
-						NilLoaderLog.log.warn("Failed to retransform {}", s, t);
-					}
-				}
+				pendingRetransforms.add(s.replace('/', '.'));
 			}
 		} else {
 			if (transformer instanceof MiniTransformer) {
 				MiniTransformer mini = (MiniTransformer)transformer;
-				if (loadedClasses.containsKey(mini.getClassTargetName().replace('/', '.'))) {
+				if (loadedClasses.isLoaded(mini.getClassTargetName().replace('/', '.'))) {
 					throw new IllegalStateException("Cannot register transformer for already loaded class: "+mini.getClassTargetName());
 				}
 			}
 			transformers.add(transformer);
+			setIndex(transformerIndex.with(transformer));
 		}
 	}
 
@@ -0,0 +1,134 @@
+package nilloader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.cadixdev.bombe.type.signature.FieldSignature;
+import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.cadixdev.lorenz.MappingSet;
+import org.cadixdev.lorenz.model.ClassMapping;
+import org.cadixdev.lorenz.model.FieldMapping;
+import org.cadixdev.lorenz.model.MethodMapping;
+
+/**
+ * Turns a nilmod's {@code META-INF/nil/mappings.json} into the equivalent
+ * {@code META-INF/nil/mappings.bin}, which is much cheaper to load. Run it with
+ * {@code java -cp NilLoader.jar nilloader.NilMappingsCompiler mappings.json mappings.bin}.
+ * The output is read back and compared to what went in before it's written.
+ */
+public final class NilMappingsCompiler {
+
+	private NilMappingsCompiler() {}
+
+	public static void main(String[] args) {
+		if (args.length != 2) {
+			System.err.println("Usage: java -cp NilLoader.jar nilloader.NilMappingsCompiler <mappings.json> <mappings.bin>");
+			System.exit(1);
+		}
+		try {
+			File in = new File(args[0]);
+			Map<String, MappingSet> mappings = new LinkedHashMap<>();
+			Map<String, WidenSet> widens = new LinkedHashMap<>();
+			read(in, mappings, widens);
+			byte[] out = compile(mappings, widens);
+			try (OutputStream os = new FileOutputStream(args[1])) {
+				os.write(out);
+			}
+			System.out.println("Wrote "+mappings.size()+" mapping set"+(mappings.size() == 1 ? "" : "s")+" to "+args[1]+" ("+out.length+" bytes)");
+		} catch (IOException e) {
+			System.err.println("Failed to compile mappings: "+e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Parse every mapping set in the given mappings.json.
+	 */
+	static void read(File json, Map<String, MappingSet> mappings, Map<String, WidenSet> widens) throws IOException {
+		LazyMappings lm;
+		try (InputStream is = new FileInputStream(json)) {
+			lm = LazyMappings.load(json, is, false);
+		}
+		for (String id : lm.getIds()) {
+			MappingSet ms = lm.getMappings(id);
+			if (ms == null) throw new IOException("Mapping set "+id+" couldn't be parsed");
+			mappings.put(id, ms);
+			WidenSet ws = lm.getWidens(id);
+			if (ws != null) widens.put(id, ws);
+		}
+	}
+
+	/**
+	 * @return the given mapping sets in the binary format, checked to read back as they are
+	 */
+	static byte[] compile(Map<String, MappingSet> mappings, Map<String, WidenSet> widens) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		NilMappingsFile.write(baos, mappings, widens);
+		byte[] data = baos.toByteArray();
+		NilMappingsFile file = NilMappingsFile.wrap(data);
+		if (!file.getIds().equals(mappings.keySet())) {
+			throw new IOException("Mapping ids didn't survive the round trip");
+		}
+		for (String id : file.getIds()) {
+			MappingSet ms = MappingSet.create();
+			WidenSet ws = new WidenSet();
+			boolean hasWidens = file.read(id, ms, ws);
+			if (hasWidens != widens.containsKey(id)
+					|| !describe(ms, hasWidens ? ws : null).equals(describe(mappings.get(id), widens.get(id)))) {
+				throw new IOException("Mapping set "+id+" didn't survive the round trip");
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * @return every mapping and widen in the given sets as a line of text, in no particular
+	 * 		order, so sets can be compared regardless of the order they were built in
+	 */
+	private static Set<String> describe(MappingSet mappings, WidenSet widens) {
+		Set<String> out = new TreeSet<>();
+		for (ClassMapping<?, ?> cm : mappings.getTopLevelClassMappings()) {
+			describe(cm, out);
+		}
+		if (widens != null) {
+			for (String s : widens.widenClasses) {
+				out.add("widen class "+s);
+			}
+			for (Map.Entry<String, Set<MethodSignature>> en : widens.widenMethods.entrySet()) {
+				for (MethodSignature sig : en.getValue()) {
+					out.add("widen method "+en.getKey()+" "+sig.getName()+" "+sig.getDescriptor());
+				}
+			}
+			for (Map.Entry<String, Set<FieldSignature>> en : widens.widenFields.entrySet()) {
+				for (FieldSignature sig : en.getValue()) {
+					out.add("widen field "+en.getKey()+" "+sig.getName()+" "+sig.getType().map(Object::toString).orElse("-"));
+				}
+			}
+		}
+		return out;
+	}
+
+	private static void describe(ClassMapping<?, ?> cm, Set<String> out) {
+		String owner = cm.getFullObfuscatedName();
+		out.add("class "+owner+" "+cm.getFullDeobfuscatedName());
+		for (FieldMapping fm : cm.getFieldMappings()) {
+			out.add("field "+owner+" "+fm.getObfuscatedName()+" "+fm.getType().map(Object::toString).orElse("-")+" "+fm.getDeobfuscatedName());
+		}
+		for (MethodMapping mm : cm.getMethodMappings()) {
+			out.add("method "+owner+" "+mm.getObfuscatedName()+" "+mm.getObfuscatedDescriptor()+" "+mm.getDeobfuscatedName());
+		}
+		for (ClassMapping<?, ?> icm : cm.getInnerClassMappings()) {
+			describe(icm, out);
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+package nilloader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.cadixdev.lorenz.MappingSet;
+
+/**
+ * The binary alternative to {@code META-INF/nil/mappings.json}: a header giving the offset and
+ * length of each mapping id's section, followed by the sections themselves as written by
+ * {@link NilMappingsWriter}. Any one id can be read without looking at the others. Generated from
+ * mappings.json by {@link NilMappingsCompiler}.
+ */
+final class NilMappingsFile {
+
+	static final String PATH = "META-INF/nil/mappings.bin";
+
+	private static final int MAGIC = 0x4E494C4D; // NILM
+	private static final int VERSION = 1;
+
+	private final byte[] data;
+	/** Mapping id to offset and length within {@link #data}. */
+	private final Map<String, int[]> sections = new LinkedHashMap<>();
+
+	private NilMappingsFile(byte[] data) {
+		this.data = data;
+	}
+
+	static NilMappingsFile wrap(byte[] data) throws IOException {
+		NilMappingsFile out = new NilMappingsFile(data);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		if (in.readInt() != MAGIC) throw new IOException("Not a NilLoader mappings file");
+		int version = in.readInt();
+		if (version != VERSION) throw new IOException("Unsupported mappings file version "+version);
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String id = in.readUTF();
+			int offset = in.readInt();
+			int length = in.readInt();
+			if (offset < 0 || length < 0 || offset+length > data.length || offset+length < 0) {
+				throw new IOException("Section "+id+" is out of bounds");
+			}
+			out.sections.put(id, new int[] {offset, length});
+		}
+		return out;
+	}
+
+	byte[] getData() {
+		return data;
+	}
+
+	Set<String> getIds() {
+		return Collections.unmodifiableSet(sections.keySet());
+	}
+
+	/**
+	 * Read the section for the given mapping id.
+	 * @param widens receives the section's widens, if not null
+	 * @return {@code true} if the section had widens
+	 */
+	boolean read(String id, MappingSet mappings, WidenSet widens) throws IOException {
+		int[] section = sections.get(id);
+		if (section == null) throw new IllegalArgumentException("No mappings with id "+id);
+		return new NilMappingsReader(new ByteArrayInputStream(data, section[0], section[1])).read(mappings, widens);
+	}
+
+	static void write(OutputStream out, Map<String, MappingSet> mappings, Map<String, WidenSet> widens) throws IOException {
+		Map<String, byte[]> bodies = new LinkedHashMap<>();
+		for (Map.Entry<String, MappingSet> en : mappings.entrySet()) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			new NilMappingsWriter(baos).write(en.getValue(), widens.get(en.getKey()));
+			bodies.put(en.getKey(), baos.toByteArray());
+		}
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(header);
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(bodies.size());
+		for (String id : bodies.keySet()) {
+			dos.writeUTF(id);
+			dos.writeInt(0);
+			dos.writeInt(0);
+		}
+		// the header's size doesn't depend on the offsets in it, so it can be laid out first
+		int offset = header.size();
+		header.reset();
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeInt(bodies.size());
+		for (Map.Entry<String, byte[]> en : bodies.entrySet()) {
+			dos.writeUTF(en.getKey());
+			dos.writeInt(offset);
+			dos.writeInt(en.getValue().length);
+			offset += en.getValue().length;
+		}
+		header.writeTo(out);
+		for (byte[] body : bodies.values()) {
+			out.write(body);
+		}
+		out.flush();
+	}
+
+}
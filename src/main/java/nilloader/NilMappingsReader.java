@@ -0,0 +1,115 @@
+package nilloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cadixdev.bombe.type.signature.FieldSignature;
+import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.cadixdev.lorenz.MappingSet;
+import org.cadixdev.lorenz.io.BinaryMappingsReader;
+import org.cadixdev.lorenz.model.ClassMapping;
+
+/**
+ * Reads sections written by {@link NilMappingsWriter}.
+ */
+final class NilMappingsReader extends BinaryMappingsReader {
+
+	private String[] strings;
+
+	NilMappingsReader(InputStream in) {
+		super(in);
+	}
+
+	@Override
+	public MappingSet read(MappingSet mappings) throws IOException {
+		read(mappings, null);
+		return mappings;
+	}
+
+	/**
+	 * Read a section into the given mapping set.
+	 * @param widens receives the section's widens, if not null
+	 * @return {@code true} if the section had widens
+	 */
+	boolean read(MappingSet mappings, WidenSet widens) throws IOException {
+		strings = new String[readVarInt()];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = stream.readUTF();
+		}
+		int classes = readVarInt();
+		for (int i = 0; i < classes; i++) {
+			readClass(mappings.getOrCreateTopLevelClassMapping(readString()));
+		}
+		boolean hasWidens = stream.readBoolean();
+		if (hasWidens) {
+			WidenSet ws = widens == null ? new WidenSet() : widens;
+			int count = readVarInt();
+			for (int i = 0; i < count; i++) {
+				ws.widenClasses.add(readString());
+			}
+			count = readVarInt();
+			for (int i = 0; i < count; i++) {
+				String owner = readString();
+				int sigs = readVarInt();
+				Set<MethodSignature> set = new HashSet<>();
+				for (int j = 0; j < sigs; j++) {
+					set.add(MethodSignature.of(readString(), readString()));
+				}
+				ws.widenMethods.put(owner, set);
+			}
+			count = readVarInt();
+			for (int i = 0; i < count; i++) {
+				String owner = readString();
+				int sigs = readVarInt();
+				Set<FieldSignature> set = new HashSet<>();
+				for (int j = 0; j < sigs; j++) {
+					set.add(readFieldSignature());
+				}
+				ws.widenFields.put(owner, set);
+			}
+		}
+		strings = null;
+		return hasWidens;
+	}
+
+	private void readClass(ClassMapping<?, ?> cm) throws IOException {
+		cm.setDeobfuscatedName(readString());
+		int fields = readVarInt();
+		for (int i = 0; i < fields; i++) {
+			cm.getOrCreateFieldMapping(readFieldSignature())
+				.setDeobfuscatedName(readString());
+		}
+		int methods = readVarInt();
+		for (int i = 0; i < methods; i++) {
+			cm.getOrCreateMethodMapping(MethodSignature.of(readString(), readString()))
+				.setDeobfuscatedName(readString());
+		}
+		int inners = readVarInt();
+		for (int i = 0; i < inners; i++) {
+			readClass(cm.getOrCreateInnerClassMapping(readString()));
+		}
+	}
+
+	private FieldSignature readFieldSignature() throws IOException {
+		String name = readString();
+		String desc = readString();
+		return desc == null ? new FieldSignature(name) : FieldSignature.of(name, desc);
+	}
+
+	private String readString() throws IOException {
+		int i = readVarInt();
+		return i == 0 ? null : strings[i-1];
+	}
+
+	private int readVarInt() throws IOException {
+		int out = 0;
+		for (int shift = 0; ; shift += 7) {
+			int b = stream.readUnsignedByte();
+			out |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return out;
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+package nilloader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.cadixdev.bombe.type.signature.FieldSignature;
+import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.cadixdev.lorenz.MappingSet;
+import org.cadixdev.lorenz.io.BinaryMappingsWriter;
+import org.cadixdev.lorenz.model.ClassMapping;
+import org.cadixdev.lorenz.model.FieldMapping;
+import org.cadixdev.lorenz.model.MethodMapping;
+
+/**
+ * Writes a mapping set, and optionally the widens that go with it, as a single section of
+ * NilLoader's binary mapping format. Every string is written once into a table at the start of
+ * the section and referred to by index afterwards; descriptors are stored already split from
+ * their names. Read back with {@link NilMappingsReader}.
+ */
+final class NilMappingsWriter extends BinaryMappingsWriter {
+
+	private final Map<String, Integer> strings = new LinkedHashMap<>();
+
+	NilMappingsWriter(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(MappingSet mappings) throws IOException {
+		write(mappings, null);
+	}
+
+	void write(MappingSet mappings, WidenSet widens) throws IOException {
+		strings.clear();
+		for (ClassMapping<?, ?> cm : mappings.getTopLevelClassMappings()) {
+			intern(cm);
+		}
+		if (widens != null) {
+			for (String s : widens.widenClasses) intern(s);
+			for (Map.Entry<String, Set<MethodSignature>> en : widens.widenMethods.entrySet()) {
+				intern(en.getKey());
+				for (MethodSignature sig : en.getValue()) {
+					intern(sig.getName());
+					intern(sig.getDescriptor().toString());
+				}
+			}
+			for (Map.Entry<String, Set<FieldSignature>> en : widens.widenFields.entrySet()) {
+				intern(en.getKey());
+				for (FieldSignature sig : en.getValue()) {
+					intern(sig.getName());
+					if (sig.getType().isPresent()) intern(sig.getType().get().toString());
+				}
+			}
+		}
+		writeVarInt(strings.size());
+		for (String s : strings.keySet()) {
+			stream.writeUTF(s);
+		}
+		Collection<? extends ClassMapping<?, ?>> classes = mappings.getTopLevelClassMappings();
+		writeVarInt(classes.size());
+		for (ClassMapping<?, ?> cm : classes) {
+			writeClass(cm);
+		}
+		stream.writeBoolean(widens != null);
+		if (widens != null) {
+			writeVarInt(widens.widenClasses.size());
+			for (String s : widens.widenClasses) writeString(s);
+			writeVarInt(widens.widenMethods.size());
+			for (Map.Entry<String, Set<MethodSignature>> en : widens.widenMethods.entrySet()) {
+				writeString(en.getKey());
+				writeVarInt(en.getValue().size());
+				for (MethodSignature sig : en.getValue()) {
+					writeString(sig.getName());
+					writeString(sig.getDescriptor().toString());
+				}
+			}
+			writeVarInt(widens.widenFields.size());
+			for (Map.Entry<String, Set<FieldSignature>> en : widens.widenFields.entrySet()) {
+				writeString(en.getKey());
+				writeVarInt(en.getValue().size());
+				for (FieldSignature sig : en.getValue()) {
+					writeString(sig.getName());
+					writeString(sig.getType().isPresent() ? sig.getType().get().toString() : null);
+				}
+			}
+		}
+		stream.flush();
+	}
+
+	private void intern(ClassMapping<?, ?> cm) {
+		intern(cm.getObfuscatedName());
+		intern(cm.getDeobfuscatedName());
+		for (FieldMapping fm : cm.getFieldMappings()) {
+			intern(fm.getObfuscatedName());
+			if (fm.getType().isPresent()) intern(fm.getType().get().toString());
+			intern(fm.getDeobfuscatedName());
+		}
+		for (MethodMapping mm : cm.getMethodMappings()) {
+			intern(mm.getObfuscatedName());
+			intern(mm.getObfuscatedDescriptor());
+			intern(mm.getDeobfuscatedName());
+		}
+		for (ClassMapping<?, ?> icm : cm.getInnerClassMappings()) {
+			intern(icm);
+		}
+	}
+
+	private void intern(String s) {
+		if (!strings.containsKey(s)) strings.put(s, strings.size());
+	}
+
+	private void writeClass(ClassMapping<?, ?> cm) throws IOException {
+		writeString(cm.getObfuscatedName());
+		writeString(cm.getDeobfuscatedName());
+		Collection<FieldMapping> fields = cm.getFieldMappings();
+		writeVarInt(fields.size());
+		for (FieldMapping fm : fields) {
+			writeString(fm.getObfuscatedName());
+			writeString(fm.getType().isPresent() ? fm.getType().get().toString() : null);
+			writeString(fm.getDeobfuscatedName());
+		}
+		Collection<MethodMapping> methods = cm.getMethodMappings();
+		writeVarInt(methods.size());
+		for (MethodMapping mm : methods) {
+			writeString(mm.getObfuscatedName());
+			writeString(mm.getObfuscatedDescriptor());
+			writeString(mm.getDeobfuscatedName());
+		}
+		Collection<? extends ClassMapping<?, ?>> inners = cm.getInnerClassMappings();
+		writeVarInt(inners.size());
+		for (ClassMapping<?, ?> icm : inners) {
+			writeClass(icm);
+		}
+	}
+
+	private void writeString(String s) throws IOException {
+		// shifted by one so null can be encoded as 0
+		writeVarInt(s == null ? 0 : strings.get(s)+1);
+	}
+
+	private void writeVarInt(int i) throws IOException {
+		while ((i & ~0x7F) != 0) {
+			stream.writeByte((i & 0x7F) | 0x80);
+			i >>>= 7;
+		}
+		stream.writeByte(i);
+	}
+
+}
@@ -0,0 +1,238 @@
+package nilloader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.grack.nanojson.JsonStringWriter;
+import com.grack.nanojson.JsonWriter;
+
+/**
+ * One-shot record of where startup time went, written to {@code .nil/profile} once the
+ * premain/hijack entrypoint has run and again when the JVM exits. Enabled with
+ * {@code -Dnil.debug.profile=true}.
+ */
+final class StartupProfile {
+
+	private static final int SLOWEST_TRANSFORMS = 25;
+
+	private static final class ClassTiming implements Comparable<ClassTiming> {
+		final String className;
+		final long nanos;
+
+		ClassTiming(String className, long nanos) {
+			this.className = className;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public int compareTo(ClassTiming o) {
+			return Long.compare(nanos, o.nanos);
+		}
+	}
+
+	private static final class EntrypointTiming {
+		final String entrypoint;
+		final String mod;
+		final String className;
+		final long nanos;
+
+		EntrypointTiming(String entrypoint, String mod, String className, long nanos) {
+			this.entrypoint = entrypoint;
+			this.mod = mod;
+			this.className = className;
+			this.nanos = nanos;
+		}
+	}
+
+	private final long jvmUptimeAtPremain = ManagementFactory.getRuntimeMXBean().getUptime();
+	private final long premainStart = System.nanoTime();
+	private long premainNanos = -1;
+	private long completePremainStart = -1;
+	private long completePremainNanos = -1;
+	private long discoveryWallNanos;
+
+	private final Map<String, Long> discoverNanos = new LinkedHashMap<>();
+	/** Reading each mod's mappings file and indexing the mapping sets in it. */
+	private final Map<String, Long> mappingsLoadNanos = new LinkedHashMap<>();
+	/** Parsing each mapping set that's actually used, which happens later, when it's first asked for. */
+	private final Map<String, Long> mappingsParseNanos = new LinkedHashMap<>();
+	private final List<EntrypointTiming> entrypoints = new ArrayList<>();
+	private final PriorityQueue<ClassTiming> slowest = new PriorityQueue<>();
+
+	private final LongAdder transformedClasses = new LongAdder();
+	private final LongAdder bytesIn = new LongAdder();
+	private final LongAdder bytesOut = new LongAdder();
+
+	void premainDone() {
+		premainNanos = System.nanoTime()-premainStart;
+	}
+
+	void completePremainStarted() {
+		completePremainStart = System.nanoTime();
+	}
+
+	void completePremainDone() {
+		completePremainNanos = System.nanoTime()-completePremainStart;
+	}
+
+	synchronized void discovered(File file, long nanos) {
+		discoverNanos.put(file.getPath(), nanos);
+	}
+
+	synchronized void discoveryWall(long nanos) {
+		discoveryWallNanos += nanos;
+	}
+
+	synchronized void mappingsLoaded(String mod, long nanos) {
+		mappingsLoadNanos.put(mod, nanos);
+	}
+
+	synchronized void mappingsParsed(File file, String id, long nanos) {
+		mappingsParseNanos.put(file.getPath()+" ("+id+")", nanos);
+	}
+
+	synchronized void entrypointFired(String entrypoint, String mod, String className, long nanos) {
+		entrypoints.add(new EntrypointTiming(entrypoint, mod, className, nanos));
+	}
+
+	void transformed(String className, long nanos, int in, int out) {
+		transformedClasses.increment();
+		bytesIn.add(in);
+		bytesOut.add(out);
+		synchronized (slowest) {
+			if (slowest.size() < SLOWEST_TRANSFORMS) {
+				slowest.add(new ClassTiming(className, nanos));
+			} else if (slowest.peek().nanos < nanos) {
+				slowest.poll();
+				slowest.add(new ClassTiming(className, nanos));
+			}
+		}
+	}
+
+	private List<ClassTiming> getSlowest() {
+		List<ClassTiming> li;
+		synchronized (slowest) {
+			li = new ArrayList<>(slowest);
+		}
+		Collections.sort(li, Collections.reverseOrder());
+		return li;
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.2fms", nanos/1_000_000D);
+	}
+
+	synchronized void write(String name) {
+		File dir = new File(".nil/profile");
+		dir.mkdirs();
+		List<ClassTiming> slowest = getSlowest();
+		long discoverySum = 0;
+		for (long l : discoverNanos.values()) discoverySum += l;
+		long frames = TransformerMetrics.WRITE_FRAMES.getInvocations();
+		long methodFrames = TransformerMetrics.WRITE_METHOD_FRAMES.getInvocations();
+		long commonSuperClass = TransformerMetrics.COMMON_SUPER_CLASS.sum();
+
+		StringBuilder txt = new StringBuilder();
+		txt.append("NilLoader startup profile (").append(name).append(")\n\n");
+		txt.append("JVM uptime at premain: ").append(jvmUptimeAtPremain).append("ms\n");
+		txt.append("premain: ").append(premainNanos < 0 ? "incomplete" : ms(premainNanos)).append("\n");
+		txt.append("completePremain: ").append(completePremainNanos < 0 ? "incomplete" : ms(completePremainNanos)).append("\n");
+		txt.append("\nDiscovery: ").append(ms(discoveryWallNanos)).append(" wall clock, ").append(ms(discoverySum)).append(" summed over ")
+			.append(discoverNanos.size()).append(" file").append(discoverNanos.size() == 1 ? "" : "s")
+			.append(" (").append(ms(Math.max(0, discoverySum-discoveryWallNanos))).append(" saved by scanning in parallel)\n");
+		for (Map.Entry<String, Long> en : discoverNanos.entrySet()) {
+			txt.append("\t").append(ms(en.getValue())).append("\t").append(en.getKey()).append("\n");
+		}
+		txt.append("\nMappings load time (reading and indexing):\n");
+		for (Map.Entry<String, Long> en : mappingsLoadNanos.entrySet()) {
+			txt.append("\t").append(ms(en.getValue())).append("\t").append(en.getKey()).append("\n");
+		}
+		txt.append("\nMappings parse time:\n");
+		for (Map.Entry<String, Long> en : mappingsParseNanos.entrySet()) {
+			txt.append("\t").append(ms(en.getValue())).append("\t").append(en.getKey()).append("\n");
+		}
+		txt.append("\nEntrypoint listeners:\n");
+		for (EntrypointTiming et : entrypoints) {
+			txt.append("\t").append(ms(et.nanos)).append("\t").append(et.entrypoint).append("\t").append(et.mod).append("\t").append(et.className).append("\n");
+		}
+		txt.append("\nTransformed ").append(transformedClasses.sum()).append(" classes, ")
+			.append(bytesIn.sum()).append(" bytes in, ").append(bytesOut.sum()).append(" bytes out, ")
+			.append(frames).append(" written with COMPUTE_FRAMES, ")
+			.append(methodFrames).append(" with frames recomputed for patched methods only, ")
+			.append(commonSuperClass).append(" common superclass lookups\n");
+		txt.append("\nSlowest transforms:\n");
+		for (ClassTiming ct : slowest) {
+			txt.append("\t").append(ms(ct.nanos)).append("\t").append(ct.className).append("\n");
+		}
+
+		JsonStringWriter json = JsonWriter.indent("\t").string().object()
+				.value("report", name)
+				.value("jvmUptimeAtPremainMillis", jvmUptimeAtPremain)
+				.value("premainNanos", premainNanos)
+				.value("completePremainNanos", completePremainNanos)
+				.object("discovery")
+					.value("wallNanos", discoveryWallNanos)
+					.value("summedNanos", discoverySum)
+					.value("savedNanos", Math.max(0, discoverySum-discoveryWallNanos))
+					.object("files");
+		for (Map.Entry<String, Long> en : discoverNanos.entrySet()) {
+			json.value(en.getKey(), en.getValue().longValue());
+		}
+		json.end().end().object("mappingsLoadNanos");
+		for (Map.Entry<String, Long> en : mappingsLoadNanos.entrySet()) {
+			json.value(en.getKey(), en.getValue().longValue());
+		}
+		json.end().object("mappingsParseNanos");
+		for (Map.Entry<String, Long> en : mappingsParseNanos.entrySet()) {
+			json.value(en.getKey(), en.getValue().longValue());
+		}
+		json.end().array("entrypoints");
+		for (EntrypointTiming et : entrypoints) {
+			json.object()
+					.value("entrypoint", et.entrypoint)
+					.value("mod", et.mod)
+					.value("class", et.className)
+					.value("nanos", et.nanos)
+				.end();
+		}
+		json.end().object("transforms")
+				.value("classes", transformedClasses.sum())
+				.value("bytesIn", bytesIn.sum())
+				.value("bytesOut", bytesOut.sum())
+				.value("computeFrames", frames)
+				.value("methodFrames", methodFrames)
+				.value("commonSuperClassLookups", commonSuperClass)
+				.array("slowest");
+		for (ClassTiming ct : slowest) {
+			json.object()
+					.value("class", ct.className)
+					.value("nanos", ct.nanos)
+				.end();
+		}
+		json.end().end().end();
+
+		writeFile(new File(dir, name+".txt"), txt.toString());
+		writeFile(new File(dir, name+".json"), json.done());
+		NilLoaderLog.log.info("Wrote {} startup profile to {}", name, dir);
+	}
+
+	private static void writeFile(File f, String s) {
+		try (OutputStream out = new FileOutputStream(f)) {
+			out.write(s.getBytes(StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			NilLoaderLog.log.warn("Failed to write startup profile to {}", f, e);
+		}
+	}
+
+}
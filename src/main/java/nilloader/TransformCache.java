@@ -0,0 +1,440 @@
+package nilloader;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of transformer output, stored as a single append-only pack file. Every record
+ * is keyed by class name, a hash of the input bytes and the class of the loader the output was
+ * produced for (or none, if it would be the same for any loader), and carries a checksum of its
+ * output so
+ * a record mangled by a torn write is never handed to the JVM. The pack as a whole is tagged with a
+ * fingerprint of everything that can influence the output, and is thrown away wholesale when that
+ * fingerprint changes. When the pack grows past its size limit, it's rewritten with only the
+ * records used this run, so output for classes that are no longer loaded falls out of it. The
+ * pack is locked for as long as it's open, so JVMs sharing it don't interleave their writes.
+ */
+final class TransformCache {
+
+	private static final int MAGIC = 0x4E494C54; // NILT
+	private static final int VERSION = 3;
+	private static final int HASH_LENGTH = 20;
+	private static final int HEADER_LENGTH = 4+4+HASH_LENGTH;
+
+	/** Stands in for the loader of output that would be the same for any loader. */
+	private static final String ANY_LOADER = "";
+
+	private static final class Key {
+		final String className;
+		final String loader;
+		final byte[] hash;
+		final int hashCode;
+
+		Key(String className, String loader, byte[] hash) {
+			this.className = className;
+			this.loader = loader;
+			this.hash = hash;
+			this.hashCode = (className.hashCode()*31+loader.hashCode())*31+Arrays.hashCode(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key that = (Key)obj;
+			return className.equals(that.className) && loader.equals(that.loader) && Arrays.equals(hash, that.hash);
+		}
+	}
+
+	/**
+	 * An open pack file and where each record is within it. Replaced as a whole on compaction, so
+	 * a lookup never reads the new file at a position from the old index.
+	 */
+	private static final class Pack {
+		final FileChannel channel;
+		/** Position, length and checksum of the output in each record. */
+		final Map<Key, long[]> index;
+
+		Pack(FileChannel channel, Map<Key, long[]> index) {
+			this.channel = channel;
+			this.index = index;
+		}
+	}
+
+	private final File file;
+	private final byte[] fingerprint;
+	private final long maxSize;
+	/** Held for as long as the cache is open. */
+	private final FileChannel lock;
+	private volatile Pack pack;
+	private long end;
+	private boolean full;
+	private boolean compacted;
+	/** Every record looked up or stored this run, which is what survives compaction. */
+	private final Set<Key> used = ConcurrentHashMap.newKeySet();
+	/** The one loader of each class whose output is cached this run. */
+	private final Map<String, WeakReference<ClassLoader>> loaders = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder stores = new LongAdder();
+
+	private TransformCache(File file, byte[] fingerprint, long maxSize, FileChannel lock) {
+		this.file = file;
+		this.fingerprint = fingerprint;
+		this.maxSize = maxSize;
+		this.lock = lock;
+	}
+
+	/**
+	 * Open (or create) the pack file in the given directory, discarding it if it was written for a
+	 * different fingerprint.
+	 * @return the cache, or null if it could not be opened or another JVM has it open
+	 */
+	static TransformCache open(File dir, byte[] fingerprint, long maxSize) {
+		File file = new File(dir, "classes.pack");
+		FileChannel lock = null;
+		try {
+			dir.mkdirs();
+			// the pack itself is replaced on compaction, so the lock goes on a file of its own
+			lock = FileChannel.open(new File(dir, "classes.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			FileLock held;
+			try {
+				held = lock.tryLock();
+			} catch (OverlappingFileLockException e) {
+				held = null;
+			}
+			if (held == null) {
+				NilLoaderLog.log.debug("Transform cache at {} is in use by another process; not caching this run", file);
+				lock.close();
+				return null;
+			}
+			TransformCache cache = new TransformCache(file, fingerprint, maxSize, lock);
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			cache.pack = new Pack(channel, new ConcurrentHashMap<>());
+			if (!cache.load()) {
+				NilLoaderLog.log.debug("Transform cache at {} is stale, oversized, or missing; starting a new one", file);
+				cache.reset();
+			}
+			NilLoaderLog.log.debug("Opened transform cache at {} with {} entr{}", file, cache.pack.index.size(), cache.pack.index.size() == 1 ? "y" : "ies");
+			return cache;
+		} catch (IOException e) {
+			NilLoaderLog.log.warn("Failed to open transform cache at {}", file, e);
+			if (lock != null) {
+				try {
+					lock.close();
+				} catch (IOException e2) {
+					e.addSuppressed(e2);
+				}
+			}
+			return null;
+		}
+	}
+
+	private boolean load() throws IOException {
+		FileChannel channel = pack.channel;
+		Map<Key, long[]> index = pack.index;
+		long size = channel.size();
+		if (size < HEADER_LENGTH || size > maxSize) return false;
+		long pos = HEADER_LENGTH;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return false;
+			byte[] fp = new byte[HASH_LENGTH];
+			in.readFully(fp);
+			if (!Arrays.equals(fp, fingerprint)) return false;
+			while (pos < size) {
+				try {
+					int nameLength = in.readUnsignedShort();
+					byte[] name = new byte[nameLength];
+					in.readFully(name);
+					int loaderLength = in.readUnsignedShort();
+					byte[] loader = new byte[loaderLength];
+					in.readFully(loader);
+					byte[] hash = new byte[HASH_LENGTH];
+					in.readFully(hash);
+					int dataLength = in.readInt();
+					long crc = in.readInt() & 0xFFFFFFFFL;
+					long dataPos = pos+2+nameLength+2+loaderLength+HASH_LENGTH+4+4;
+					if (dataLength < 0 || dataPos+dataLength > size) break;
+					skipFully(in, dataLength);
+					Key key = new Key(new String(name, StandardCharsets.UTF_8), new String(loader, StandardCharsets.UTF_8), hash);
+					index.put(key, new long[] {dataPos, dataLength, crc});
+					pos = dataPos+dataLength;
+				} catch (EOFException e) {
+					break;
+				}
+			}
+		}
+		if (pos != size) {
+			// a torn write from a previous run; drop it
+			channel.truncate(pos);
+		}
+		end = pos;
+		return true;
+	}
+
+	private void reset() throws IOException {
+		pack.index.clear();
+		pack.channel.truncate(0);
+		writeFully(pack.channel, header(), 0);
+		end = HEADER_LENGTH;
+	}
+
+	private ByteBuffer header() {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+		header.putInt(MAGIC).putInt(VERSION).put(fingerprint);
+		header.flip();
+		return header;
+	}
+
+	static byte[] hash(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	/**
+	 * @return what identifies the given loader in keys, or null if output for it can't be
+	 * 		cached, as another loader of the same class got there first
+	 */
+	private String loaderName(ClassLoader loader) {
+		if (loader == null) return "bootstrap";
+		String name = loader.getClass().getName();
+		WeakReference<ClassLoader> ref = loaders.computeIfAbsent(name, k -> new WeakReference<>(loader));
+		// keys have to mean the same thing next run, which loader identity doesn't
+		return ref.get() == loader ? name : null;
+	}
+
+	/**
+	 * @return the previously stored output for this class and input, or null
+	 */
+	byte[] get(ClassLoader loader, String className, byte[] inputHash) {
+		Pack p = pack;
+		Key key = new Key(className, ANY_LOADER, inputHash);
+		long[] loc = p.index.get(key);
+		if (loc == null) {
+			String name = loaderName(loader);
+			if (name != null) {
+				key = new Key(className, name, inputHash);
+				loc = p.index.get(key);
+			}
+		}
+		if (loc == null) {
+			misses.increment();
+			return null;
+		}
+		byte[] out;
+		// an interrupted thread would close the channel for everyone, so clear the interrupt for now
+		boolean interrupted = Thread.interrupted();
+		try {
+			try {
+				out = read(p.channel, loc);
+			} catch (ClosedChannelException e) {
+				p = reopen(p);
+				loc = p.index.get(key);
+				if (loc == null) {
+					misses.increment();
+					return null;
+				}
+				out = read(p.channel, loc);
+			}
+		} catch (IOException e) {
+			NilLoaderLog.log.debug("Failed to read {} from transform cache", className, e);
+			misses.increment();
+			return null;
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		if (crc(out) != loc[2]) {
+			// left behind by a torn write; forget it, so compaction doesn't keep it either
+			NilLoaderLog.log.debug("Transform cache record for {} is corrupt; ignoring it", className);
+			p.index.remove(key, loc);
+			misses.increment();
+			return null;
+		}
+		used.add(key);
+		hits.increment();
+		return out;
+	}
+
+	/**
+	 * @param anyLoader whether the output would be the same no matter which loader defined the class
+	 */
+	void put(ClassLoader loader, boolean anyLoader, String className, byte[] inputHash, byte[] output) {
+		String loaderName = anyLoader ? ANY_LOADER : loaderName(loader);
+		if (loaderName == null) return;
+		byte[] name = className.getBytes(StandardCharsets.UTF_8);
+		byte[] loaderBytes = loaderName.getBytes(StandardCharsets.UTF_8);
+		if (name.length > 0xFFFF || loaderBytes.length > 0xFFFF) return;
+		Key key = new Key(className, loaderName, inputHash);
+		ByteBuffer buf = record(name, loaderBytes, inputHash, output);
+		int length = buf.remaining();
+		boolean interrupted = Thread.interrupted();
+		try {
+			synchronized (this) {
+				if (full) return;
+				if (end+length > maxSize && !(compact() && end+length <= maxSize)) {
+					NilLoaderLog.log.debug("Transform cache is full, not storing any more classes this run");
+					full = true;
+					return;
+				}
+				long pos = end;
+				try {
+					try {
+						writeFully(pack.channel, buf, pos);
+					} catch (ClosedChannelException e) {
+						buf.rewind();
+						writeFully(reopen(pack).channel, buf, pos);
+					}
+				} catch (IOException e) {
+					NilLoaderLog.log.debug("Failed to write {} to transform cache", className, e);
+					full = true;
+					return;
+				}
+				end = pos+length;
+				pack.index.put(key, new long[] {pos+length-output.length, output.length, crc(output)});
+				used.add(key);
+			}
+		} finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+		stores.increment();
+	}
+
+	/**
+	 * Open the pack again after its channel was closed under us, which happens if a thread is
+	 * interrupted in the middle of reading or writing it.
+	 * @return the pack to use from now on
+	 */
+	private synchronized Pack reopen(Pack closed) throws IOException {
+		if (pack != closed) return pack;
+		NilLoaderLog.log.debug("Transform cache channel was closed; reopening it");
+		pack = new Pack(FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE), closed.index);
+		return pack;
+	}
+
+	/**
+	 * Rewrite the pack with only the records used this run. Only done once a run, as a pack
+	 * that fills up again is full of classes that are actually used.
+	 * @return {@code false} if the pack couldn't be compacted
+	 */
+	private boolean compact() {
+		if (compacted) return false;
+		compacted = true;
+		Pack old = pack;
+		File tmp = new File(file.getPath()+".tmp");
+		Map<Key, long[]> index = new ConcurrentHashMap<>();
+		long pos = HEADER_LENGTH;
+		try {
+			try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				writeFully(out, header(), 0);
+				for (Key key : used) {
+					long[] loc = old.index.get(key);
+					if (loc == null) continue;
+					byte[] data = read(old.channel, loc);
+					if (crc(data) != loc[2]) continue;
+					ByteBuffer buf = record(key.className.getBytes(StandardCharsets.UTF_8), key.loader.getBytes(StandardCharsets.UTF_8), key.hash, data);
+					int length = buf.remaining();
+					writeFully(out, buf, pos);
+					index.put(key, new long[] {pos+length-loc[1], loc[1], loc[2]});
+					pos += length;
+				}
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			pack = new Pack(FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE), index);
+			// only now that the new pack is in place; lookups still holding the old one count as misses
+			try {
+				old.channel.close();
+			} catch (IOException e) {
+				NilLoaderLog.log.debug("Failed to close old transform cache pack", e);
+			}
+			NilLoaderLog.log.debug("Compacted transform cache from {} to {} entr{}", old.index.size(), index.size(), index.size() == 1 ? "y" : "ies");
+			end = pos;
+			return true;
+		} catch (IOException e) {
+			NilLoaderLog.log.debug("Failed to compact transform cache", e);
+			tmp.delete();
+			return false;
+		}
+	}
+
+	private static ByteBuffer record(byte[] name, byte[] loader, byte[] hash, byte[] data) {
+		ByteBuffer buf = ByteBuffer.allocate(2+name.length+2+loader.length+HASH_LENGTH+4+4+data.length);
+		buf.putShort((short)name.length).put(name).putShort((short)loader.length).put(loader).put(hash).putInt(data.length).putInt((int)crc(data)).put(data);
+		buf.flip();
+		return buf;
+	}
+
+	private static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	private static byte[] read(FileChannel channel, long[] loc) throws IOException {
+		byte[] out = new byte[(int)loc[1]];
+		ByteBuffer buf = ByteBuffer.wrap(out);
+		long pos = loc[0];
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, pos+buf.position());
+			if (read < 0) throw new EOFException();
+		}
+		return out;
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long pos) throws IOException {
+		while (buf.hasRemaining()) {
+			pos += channel.write(buf, pos);
+		}
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		while (n > 0) {
+			long skipped = in.skip(n);
+			if (skipped <= 0) throw new EOFException();
+			n -= skipped;
+		}
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+
+	long getStores() {
+		return stores.sum();
+	}
+
+}
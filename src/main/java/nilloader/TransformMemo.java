@@ -0,0 +1,152 @@
+package nilloader;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+/**
+ * Transformer output held in memory for the length of a startup burst, so the same class bytes
+ * arriving again, whether defined by another class loader or retransformed, aren't transformed
+ * all over again. Entries are keyed by class name, a checksum of the input bytes and the stages
+ * that ran, and only count as a match if the input is byte for byte the same and was transformed
+ * by the same set of transformers. Output is only shared between class loaders if nothing that
+ * produced it could have depended on the loader; otherwise it's only reused for the loader it was
+ * produced for. Duplicate definitions tend to arrive close together, so the least recently used
+ * entries are evicted once the memo holds more than its limit in bytes.
+ */
+final class TransformMemo {
+
+	private static final class Key {
+		final String className;
+		final long checksum;
+		final int stages;
+		/** Whether the entry is for every loader, rather than one in particular. */
+		final boolean shared;
+		/** The identity hash of the entry's loader, if it isn't shared. */
+		final int loaderHash;
+
+		Key(String className, long checksum, int stages, boolean shared, int loaderHash) {
+			this.className = className;
+			this.checksum = checksum;
+			this.stages = stages;
+			this.shared = shared;
+			this.loaderHash = loaderHash;
+		}
+
+		@Override
+		public int hashCode() {
+			return (((className.hashCode()*31+Long.hashCode(checksum))*31+stages)*31+loaderHash)*2+(shared ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key that = (Key)obj;
+			return checksum == that.checksum && stages == that.stages && shared == that.shared
+					&& loaderHash == that.loaderHash && className.equals(that.className);
+		}
+	}
+
+	private static final class Entry {
+		final TransformerIndex index;
+		/** Held weakly, so the memo doesn't keep loaders alive; null if shared or the bootstrap loader. */
+		final WeakReference<ClassLoader> loader;
+		final byte[] input;
+		/** Null if the transformers left the class as it was. */
+		final byte[] output;
+
+		Entry(TransformerIndex index, WeakReference<ClassLoader> loader, byte[] input, byte[] output) {
+			this.index = index;
+			this.loader = loader;
+			this.input = input;
+			this.output = output;
+		}
+
+		boolean isFor(ClassLoader loader) {
+			return loader == null ? this.loader == null : this.loader != null && this.loader.get() == loader;
+		}
+
+		long size() {
+			return input.length+(output == null ? 0 : output.length);
+		}
+	}
+
+	private static final LongAdder hits = new LongAdder();
+	private static final LongAdder misses = new LongAdder();
+
+	private final long maxSize;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long size;
+
+	TransformMemo(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	static long checksum(byte[] classBytes) {
+		CRC32 crc = new CRC32();
+		crc.update(classBytes, 0, classBytes.length);
+		return crc.getValue() | ((long)classBytes.length << 32);
+	}
+
+	/**
+	 * @param index the transformers that would run on the class
+	 * @return the input bytes themselves if the transformers left them as they were, a copy of
+	 * 		what the transformers turned them into, or null if they haven't been seen
+	 */
+	byte[] get(ClassLoader loader, String className, long checksum, int stages, byte[] input, TransformerIndex index) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(new Key(className, checksum, stages, true, 0));
+			if (e == null) {
+				e = entries.get(new Key(className, checksum, stages, false, System.identityHashCode(loader)));
+				if (e != null && !e.isFor(loader)) e = null;
+			}
+		}
+		if (e == null || e.index != index || !Arrays.equals(e.input, input)) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		// a copy, in case whoever gets it next modifies it in place
+		return e.output == null ? input : e.output.clone();
+	}
+
+	/**
+	 * @param output the transformed bytes, or the input bytes themselves if nothing changed
+	 * @param shared whether the output would be the same no matter which loader the class was
+	 * 		defined by
+	 */
+	void put(ClassLoader loader, boolean shared, String className, long checksum, int stages, byte[] input, byte[] output, TransformerIndex index) {
+		WeakReference<ClassLoader> ref = shared || loader == null ? null : new WeakReference<>(loader);
+		Entry e = new Entry(index, ref, input, output == input ? null : output);
+		if (e.size() > maxSize) return;
+		Key key = shared ? new Key(className, checksum, stages, true, 0) : new Key(className, checksum, stages, false, System.identityHashCode(loader));
+		synchronized (this) {
+			Entry old = entries.put(key, e);
+			if (old != null) size -= old.size();
+			size += e.size();
+			Iterator<Entry> iter = entries.values().iterator();
+			while (size > maxSize && iter.hasNext()) {
+				size -= iter.next().size();
+				iter.remove();
+			}
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	static long getHits() {
+		return hits.sum();
+	}
+
+	static long getMisses() {
+		return misses.sum();
+	}
+
+}
@@ -0,0 +1,149 @@
+package nilloader;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import nilloader.api.ClassRetransformer;
+import nilloader.api.ClassTransformer;
+import nilloader.api.lib.mini.MiniTransformer;
+
+/**
+ * Immutable dispatch table from internal class names to the transformers that may be interested
+ * in them. Transformers that declare exact targets (Mini transformers and retransformers) are only
+ * looked at for those classes; everything else has to see every class.
+ */
+final class TransformerIndex {
+
+	static final class Entry {
+		/** Everything but retransformers, which only ever runs when a class is first loaded. */
+		final ClassTransformer[] transformers;
+		/** Retransformers, which have to be run again whenever the class is retransformed. */
+		final ClassTransformer[] retransformers;
+
+		Entry(List<ClassTransformer> transformers) {
+			List<ClassTransformer> plain = new ArrayList<>();
+			List<ClassTransformer> re = new ArrayList<>();
+			for (ClassTransformer ct : transformers) {
+				(ct instanceof ClassRetransformer ? re : plain).add(ct);
+			}
+			this.transformers = plain.toArray(new ClassTransformer[plain.size()]);
+			this.retransformers = re.toArray(new ClassTransformer[re.size()]);
+		}
+
+		private Entry(ClassTransformer[] transformers, ClassTransformer[] retransformers) {
+			this.transformers = transformers;
+			this.retransformers = retransformers;
+		}
+
+		Entry with(ClassTransformer ct) {
+			if (ct instanceof ClassRetransformer) {
+				return new Entry(transformers, append(retransformers, ct));
+			}
+			return new Entry(append(transformers, ct), retransformers);
+		}
+
+		private static ClassTransformer[] append(ClassTransformer[] arr, ClassTransformer ct) {
+			ClassTransformer[] out = Arrays.copyOf(arr, arr.length+1);
+			out[arr.length] = ct;
+			return out;
+		}
+	}
+
+	static final TransformerIndex EMPTY = build(Collections.emptyList());
+
+	private final Map<String, Entry> targeted;
+	private final Entry untargeted;
+
+	private TransformerIndex(Map<String, Entry> targeted, Entry untargeted) {
+		this.targeted = targeted;
+		this.untargeted = untargeted;
+	}
+
+	/**
+	 * @return the transformers to run for the given internal class name, in registration order
+	 */
+	Entry get(String className) {
+		Entry e = targeted.get(className);
+		return e == null ? untargeted : e;
+	}
+
+	Set<String> getTargetNames() {
+		return targeted.keySet();
+	}
+
+	int getTargetCount() {
+		return targeted.size();
+	}
+
+	int getUntargetedCount() {
+		return untargeted.transformers.length;
+	}
+
+	static TransformerIndex build(List<ClassTransformer> transformers) {
+		Map<String, List<ClassTransformer>> lists = new HashMap<>();
+		List<ClassTransformer> untargeted = new ArrayList<>();
+		for (ClassTransformer ct : transformers) {
+			Set<String> targets = getTargets(ct);
+			if (targets == null) {
+				untargeted.add(ct);
+				for (List<ClassTransformer> l : lists.values()) {
+					l.add(ct);
+				}
+			} else {
+				for (String target : targets) {
+					lists.computeIfAbsent(target, k -> new ArrayList<>(untargeted)).add(ct);
+				}
+			}
+		}
+		Map<String, Entry> targeted = new HashMap<>();
+		for (Map.Entry<String, List<ClassTransformer>> en : lists.entrySet()) {
+			targeted.put(en.getKey(), new Entry(en.getValue()));
+		}
+		return new TransformerIndex(targeted, new Entry(untargeted));
+	}
+
+	/**
+	 * @return a copy of this index with the given transformer registered after all the others,
+	 * 		which only touches the entries it targets
+	 */
+	TransformerIndex with(ClassTransformer ct) {
+		Set<String> targets = getTargets(ct);
+		Map<String, Entry> out = new HashMap<>(targeted);
+		if (targets == null) {
+			for (Map.Entry<String, Entry> en : out.entrySet()) {
+				en.setValue(en.getValue().with(ct));
+			}
+			return new TransformerIndex(out, untargeted.with(ct));
+		}
+		for (String target : targets) {
+			Entry e = out.get(target);
+			out.put(target, (e == null ? untargeted : e).with(ct));
+		}
+		return new TransformerIndex(out, untargeted);
+	}
+
+	/**
+	 * @return the exact internal names this transformer can affect, or null if it must see every class
+	 */
+	static Set<String> getTargets(ClassTransformer ct) {
+		Set<String> out = null;
+		if (ct instanceof MiniTransformer) {
+			out = new LinkedHashSet<>();
+			out.add(((MiniTransformer)ct).getClassTargetName());
+		}
+		if (ct instanceof ClassRetransformer) {
+			if (out == null) out = new LinkedHashSet<>();
+			for (String s : ((ClassRetransformer)ct).getTargets()) {
+				out.add(s.replace('.', '/'));
+			}
+		}
+		return out;
+	}
+
+}
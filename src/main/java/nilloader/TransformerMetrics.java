@@ -0,0 +1,182 @@
+package nilloader;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import nilloader.api.ClassTransformer;
+
+/**
+ * Lock-free counters for the transformation pipeline. Recording never blocks, so parallel-capable
+ * class loaders don't contend on it.
+ */
+final class TransformerMetrics implements TransformerMetricsMXBean {
+
+	static final class Timer {
+		final String name;
+		final String mod;
+		private final LongAdder invocations = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final LongAdder failures = new LongAdder();
+
+		Timer(String name, String mod) {
+			this.name = name;
+			this.mod = mod;
+		}
+
+		void record(long nanos, boolean failed) {
+			invocations.increment();
+			totalNanos.add(nanos);
+			long max = maxNanos.get();
+			while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+				max = maxNanos.get();
+			}
+			if (failed) failures.increment();
+		}
+
+		void record(long nanos) {
+			record(nanos, false);
+		}
+
+		long getInvocations() {
+			return invocations.sum();
+		}
+
+		Timing snapshot() {
+			return new Timing(name, mod, invocations.sum(), totalNanos.sum(), maxNanos.get(), failures.sum());
+		}
+	}
+
+	static final Timer PARSE = new Timer("parse", null);
+	static final Timer WRITE = new Timer("write", null);
+	static final Timer WRITE_FRAMES = new Timer("write+frames", null);
+	static final Timer WRITE_METHOD_FRAMES = new Timer("write+methodFrames", null);
+	static final Timer STREAM = new Timer("stream", null);
+	static final Timer WIDEN = new Timer("widen", null);
+	static final Timer MOD_REMAP = new Timer("modRemap", null);
+
+	private static final Timer[] STAGES = { PARSE, WRITE, WRITE_FRAMES, WRITE_METHOD_FRAMES, STREAM, WIDEN, MOD_REMAP };
+
+	static final LongAdder COMMON_SUPER_CLASS = new LongAdder();
+	static final LongAdder FRAMES_SKIPPED = new LongAdder();
+
+	private static final Map<ClassTransformer, Timer> byTransformer = new ConcurrentHashMap<>();
+	private static final List<Timer> transformers = new CopyOnWriteArrayList<>();
+
+	static final TransformerMetrics INSTANCE = new TransformerMetrics();
+
+	private TransformerMetrics() {}
+
+	static void register(ClassTransformer ct, String mod) {
+		Timer t = new Timer(ct.getClass().getName(), mod);
+		if (byTransformer.putIfAbsent(ct, t) == null) {
+			transformers.add(t);
+		}
+	}
+
+	static Timer get(ClassTransformer ct) {
+		Timer t = byTransformer.get(ct);
+		if (t == null) {
+			register(ct, null);
+			t = byTransformer.get(ct);
+		}
+		return t;
+	}
+
+	static void publish() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName("nilloader:type=Transformers"));
+		} catch (Throwable t) {
+			NilLoaderLog.log.warn("Failed to publish transformer metrics over JMX", t);
+		}
+	}
+
+	@Override
+	public List<Timing> getTransformers() {
+		List<Timing> out = new ArrayList<>();
+		for (Timer t : transformers) {
+			out.add(t.snapshot());
+		}
+		return out;
+	}
+
+	@Override
+	public List<Timing> getStages() {
+		List<Timing> out = new ArrayList<>();
+		for (Timer t : STAGES) {
+			out.add(t.snapshot());
+		}
+		return out;
+	}
+
+	@Override
+	public long getFastRejectedClasses() {
+		return NamespaceFilter.getRejectedCount();
+	}
+
+	@Override
+	public long getFastPassedClasses() {
+		return NamespaceFilter.getPassedCount();
+	}
+
+	@Override
+	public long getCommonSuperClassLookups() {
+		return COMMON_SUPER_CLASS.sum();
+	}
+
+	@Override
+	public long getCommonSuperClassMemoHits() {
+		return ClassHierarchyCache.getMemoHits();
+	}
+
+	@Override
+	public long getHierarchyLoads() {
+		return ClassHierarchyCache.getLoads();
+	}
+
+	@Override
+	public long getFrameComputationsSkipped() {
+		return FRAMES_SKIPPED.sum();
+	}
+
+	@Override
+	public long getCacheHits() {
+		TransformCache cache = NilAgent.getTransformCache();
+		return cache == null ? 0 : cache.getHits();
+	}
+
+	@Override
+	public long getCacheMisses() {
+		TransformCache cache = NilAgent.getTransformCache();
+		return cache == null ? 0 : cache.getMisses();
+	}
+
+	@Override
+	public long getMemoHits() {
+		return TransformMemo.getHits();
+	}
+
+	@Override
+	public long getMemoMisses() {
+		return TransformMemo.getMisses();
+	}
+
+	@Override
+	public long getInheritanceCacheHits() {
+		return InheritanceCache.getHits();
+	}
+
+	@Override
+	public long getInheritanceCacheMisses() {
+		return InheritanceCache.getMisses();
+	}
+
+}
@@ -0,0 +1,71 @@
+package nilloader;
+
+import java.util.List;
+
+/**
+ * Live class transformation statistics, published as {@code nilloader:type=Transformers}.
+ */
+public interface TransformerMetricsMXBean {
+
+	final class Timing {
+		private final String name;
+		private final String mod;
+		private final long invocations;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long failures;
+
+		public Timing(String name, String mod, long invocations, long totalNanos, long maxNanos, long failures) {
+			this.name = name;
+			this.mod = mod;
+			this.invocations = invocations;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.failures = failures;
+		}
+
+		public String getName() { return name; }
+		public String getMod() { return mod; }
+		public long getInvocations() { return invocations; }
+		public long getTotalNanos() { return totalNanos; }
+		public long getMaxNanos() { return maxNanos; }
+		public long getFailures() { return failures; }
+	}
+
+	/**
+	 * @return one entry per registered transformer, in registration order
+	 */
+	List<Timing> getTransformers();
+
+	/**
+	 * @return the shared stages of the pipeline that aren't attributable to a single transformer
+	 */
+	List<Timing> getStages();
+
+	long getFastRejectedClasses();
+	long getFastPassedClasses();
+
+	long getCommonSuperClassLookups();
+	long getCommonSuperClassMemoHits();
+	/**
+	 * @return how many class files were read to learn about their hierarchy
+	 */
+	long getHierarchyLoads();
+	/**
+	 * @return how many classes asked for frames but were too old for the verifier to use them
+	 */
+	long getFrameComputationsSkipped();
+
+	long getCacheHits();
+	long getCacheMisses();
+
+	/**
+	 * @return how many classes were handed the output of an earlier transformation of the same bytes
+	 */
+	long getMemoHits();
+	long getMemoMisses();
+
+	long getInheritanceCacheHits();
+	long getInheritanceCacheMisses();
+
+}
@@ -1,5 +1,6 @@
 package nilloader;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -7,6 +8,13 @@ import java.util.Set;
 
 import org.cadixdev.bombe.type.signature.FieldSignature;
 import org.cadixdev.bombe.type.signature.MethodSignature;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.MethodNode;
 
 class WidenSet {
 
@@ -14,4 +22,73 @@ class WidenSet {
 	public final Map<String, Set<MethodSignature>> widenMethods = new HashMap<>();
 	public final Map<String, Set<FieldSignature>> widenFields = new HashMap<>();
 	
+	/**
+	 * Widen the given class in place, for when it's already been parsed for another transformer.
+	 */
+	public void apply(ClassNode clazz) {
+		if (widenClasses.contains(clazz.name)) {
+			NilLoaderLog.log.debug("Making class {} public", clazz.name);
+			clazz.access = makePublic(clazz.access);
+		}
+		Set<MethodSignature> methods = widenMethods.getOrDefault(clazz.name, Collections.emptySet());
+		if (!methods.isEmpty()) {
+			for (MethodNode mn : clazz.methods) {
+				if (methods.contains(MethodSignature.of(mn.name, mn.desc))) {
+					NilLoaderLog.log.debug("Making method {}.{}{} public", clazz.name, mn.name, mn.desc);
+					mn.access = makePublic(mn.access);
+				}
+			}
+		}
+		Set<FieldSignature> fields = widenFields.getOrDefault(clazz.name, Collections.emptySet());
+		if (!fields.isEmpty()) {
+			for (FieldNode fn : clazz.fields) {
+				if (fields.contains(FieldSignature.of(fn.name, fn.desc))) {
+					NilLoaderLog.log.debug("Making field {}.{}:{} public", clazz.name, fn.name, fn.desc);
+					fn.access = makePublic(fn.access);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return a visitor that widens the class passing through it on its way to {@code cv}
+	 */
+	public ClassVisitor visitor(String className, ClassVisitor cv) {
+		Set<FieldSignature> fields = widenFields.getOrDefault(className, Collections.emptySet());
+		Set<MethodSignature> methods = widenMethods.getOrDefault(className, Collections.emptySet());
+		return new ClassVisitor(Opcodes.ASM9, cv) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				if (widenClasses.contains(name)) {
+					NilLoaderLog.log.debug("Making class {} public", name);
+					access = makePublic(access);
+				}
+				super.visit(version, access, name, signature, superName, interfaces);
+			}
+			
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				if (methods.contains(MethodSignature.of(name, descriptor))) {
+					NilLoaderLog.log.debug("Making method {}.{}{} public", className, name, descriptor);
+					access = makePublic(access);
+				}
+				return super.visitMethod(access, name, descriptor, signature, exceptions);
+			}
+			
+			@Override
+			public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+				if (fields.contains(FieldSignature.of(name, descriptor))) {
+					NilLoaderLog.log.debug("Making field {}.{}:{} public", className, name, descriptor);
+					access = makePublic(access);
+				}
+				return super.visitField(access, name, descriptor, signature, value);
+			}
+			
+		};
+	}
+	
+	private static int makePublic(int access) {
+		return (access & ~(Opcodes.ACC_PRIVATE|Opcodes.ACC_PROTECTED)) | Opcodes.ACC_PUBLIC;
+	}
+	
 }
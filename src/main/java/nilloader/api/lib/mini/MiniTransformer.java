@@ -36,10 +36,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.UnaryOperator;
 
 import org.cadixdev.bombe.type.signature.MethodSignature;
 import org.cadixdev.lorenz.MappingSet;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.*;
 
@@ -62,6 +65,7 @@ public abstract class MiniTransformer implements ASMTransformer {
 	private final Map<String, List<PatchMethod>> methods = new HashMap<String, List<PatchMethod>>();
 	private final Set<String> requiredMethods = new HashSet<String>();
 	private final Optional<MappingSet> mappings;
+	private final boolean streamable;
 	
 	public MiniTransformer() {
 		this.mappings = Optional.ofNullable(NilAgent.getActiveMappings(NilAgent.getActiveMod()));
@@ -103,6 +107,19 @@ public abstract class MiniTransformer implements ASMTransformer {
 				}
 			}
 		}
+		this.streamable = !overridesModifyClassStructure(getClass());
+	}
+	
+	private static boolean overridesModifyClassStructure(Class<?> clazz) {
+		for (Class<?> c = clazz; c != MiniTransformer.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("modifyClassStructure", ClassNode.class);
+				return true;
+			} catch (NoSuchMethodException e) {
+				// keep looking
+			}
+		}
+		return false;
 	}
 	
 	public String getClassTargetName() {
@@ -127,6 +144,18 @@ public abstract class MiniTransformer implements ASMTransformer {
 	
 	@Override
 	public final boolean transform(ClassLoader loader, ClassNode clazz) {
+		Set<MethodNode> framesNeeded = new HashSet<MethodNode>();
+		return transform(loader, clazz, framesNeeded) || !framesNeeded.isEmpty();
+	}
+	
+	/**
+	 * Like {@link #transform(ClassLoader, ClassNode)}, but reports which methods had their control
+	 * flow modified instead of asking for frames to be recomputed for the whole class.
+	 * @param framesNeeded methods whose frames must be recomputed are added to this set
+	 * @return {@code true} if frames must be recomputed for the whole class, as
+	 * 		{@link #modifyClassStructure(ClassNode)} asked for it
+	 */
+	public final boolean transform(ClassLoader loader, ClassNode clazz, Set<MethodNode> framesNeeded) {
 		String className = clazz.name.replace('.', '/');
 		if (!classTargetName.equals(className)) return false;
 		
@@ -141,20 +170,96 @@ public abstract class MiniTransformer implements ASMTransformer {
 			foundMethods.add(name);
 			List<PatchMethod> li = methods.get(name);
 			if (li != null) {
-				for (PatchMethod pm : li) {
-					try {
-						PatchContext ctx = new PatchContext(mn, this.mappings);
-						frames |= pm.patch(ctx);
-						ctx.finish();
-					} catch (Throwable t) {
-						throw new Error("Failed to patch "+className+"."+mn.name+mn.desc+" via "+pm, t);
-					}
-					$$internal$logDebug("[{}] Successfully transformed {}.{}{} via {}", getClass().getName(), className, mn.name, mn.desc, pm);
+				if (patch(className, mn, li)) {
+					framesNeeded.add(mn);
 				}
 			}
 			requiredsNotSeen.remove(name);
 		}
 		
+		checkRequiredMethods(className, foundMethods, requiredsNotSeen);
+		
+		return frames;
+	}
+	
+	/**
+	 * @return {@code true} if this transformer can be run via {@link #createStreamingVisitor}, which
+	 * 		is the case unless it overrides {@link #modifyClassStructure(ClassNode)}
+	 */
+	public final boolean isStreamable() {
+		return streamable;
+	}
+	
+	/**
+	 * Create a visitor that applies this transformer's patches to a class on its way to {@code next}.
+	 * Only the methods this transformer patches are expanded into MethodNodes; everything else is
+	 * passed along untouched, so a ClassWriter sharing a ClassReader with the stream can copy it
+	 * over without parsing it.
+	 * @param recomputeFrames called with each patched method that had its control flow modified,
+	 * 		returning the method to pass on in its place
+	 */
+	public final ClassVisitor createStreamingVisitor(ClassLoader loader, final ClassVisitor next, final UnaryOperator<MethodNode> recomputeFrames) {
+		if (!streamable) throw new IllegalStateException(getClass().getName()+" overrides modifyClassStructure and cannot be streamed");
+		return new ClassVisitor(ASM9, next) {
+			private String className;
+			private boolean active;
+			private final List<String> foundMethods = new ArrayList<String>();
+			private final Set<String> requiredsNotSeen = new HashSet<String>(requiredMethods);
+			
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				className = name;
+				active = classTargetName.equals(name);
+				super.visit(version, access, name, signature, superName, interfaces);
+			}
+			
+			@Override
+			public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+				if (!active) return super.visitMethod(access, name, descriptor, signature, exceptions);
+				String key = name+descriptor;
+				foundMethods.add(key);
+				requiredsNotSeen.remove(key);
+				final List<PatchMethod> li = methods.get(key);
+				if (li == null) return super.visitMethod(access, name, descriptor, signature, exceptions);
+				return new MethodNode(ASM9, access, name, descriptor, signature, exceptions) {
+					@Override
+					public void visitEnd() {
+						MethodNode out = this;
+						if (patch(className, this, li)) {
+							out = recomputeFrames.apply(this);
+						}
+						out.accept(next);
+					}
+				};
+			}
+			
+			@Override
+			public void visitEnd() {
+				if (active) checkRequiredMethods(className, foundMethods, requiredsNotSeen);
+				super.visitEnd();
+			}
+		};
+	}
+	
+	/**
+	 * @return {@code true} if frames must be recomputed for this method
+	 */
+	private boolean patch(String className, MethodNode mn, List<PatchMethod> li) {
+		boolean frames = false;
+		for (PatchMethod pm : li) {
+			try {
+				PatchContext ctx = new PatchContext(mn, this.mappings);
+				frames |= pm.patch(ctx);
+				ctx.finish();
+			} catch (Throwable t) {
+				throw new Error("Failed to patch "+className+"."+mn.name+mn.desc+" via "+pm, t);
+			}
+			$$internal$logDebug("[{}] Successfully transformed {}.{}{} via {}", getClass().getName(), className, mn.name, mn.desc, pm);
+		}
+		return frames;
+	}
+	
+	private void checkRequiredMethods(String className, List<String> foundMethods, Set<String> requiredsNotSeen) {
 		if (!requiredsNotSeen.isEmpty()) {
 			StringBuilder msg = new StringBuilder();
 			msg.append(requiredsNotSeen.size());
@@ -179,8 +284,6 @@ public abstract class MiniTransformer implements ASMTransformer {
 			String msgS = msg.toString();
 			throw new Error(msgS);
 		}
-		
-		return frames;
 	}
 	
 	@Override